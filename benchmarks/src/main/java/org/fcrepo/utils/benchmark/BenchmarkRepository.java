@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils.benchmark;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.utils.SpuriousNamespaceGenerator;
+import org.modeshape.jcr.ModeShapeEngine;
+import org.modeshape.jcr.RepositoryConfiguration;
+
+/**
+ * In-memory ModeShape repository seeded with spurious nsXXX namespaces, nsXXX:None mixin
+ * nodetypes and resources using them, in the shape produced by the batch loader bug.
+ **/
+class BenchmarkRepository implements AutoCloseable {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final ModeShapeEngine engine = new ModeShapeEngine();
+
+    private final Repository repository;
+
+    BenchmarkRepository() throws Exception {
+        // A fresh index directory per repository, so no trial sees another trial's indexes
+        System.setProperty("benchmark.index.directory", Files.createTempDirectory("benchmark-indexes").toString());
+        engine.start();
+        final RepositoryConfiguration config =
+                RepositoryConfiguration.read(BenchmarkRepository.class.getResource("/benchmark-repository.json"));
+        repository = engine.deploy(config);
+        engine.startRepository(config.getName()).get();
+    }
+
+    Session login() throws RepositoryException {
+        return repository.login();
+    }
+
+    /**
+     * Generate the namespaces and their nodetypes, and resources with the first fraction of them
+     * using one of the nodetypes as a mixin.
+     *
+     * @return the generated nodetype names
+     **/
+    static List<String> seed(final Session session, final String prefixBase, final int namespaces,
+            final int resources, final double resourceFraction) throws RepositoryException {
+        final List<String> nodeTypes = new ArrayList<String>(namespaces);
+        for (final String prefix : new SpuriousNamespaceGenerator(session, prefixBase, BATCH_SIZE)
+                .generate(namespaces, resources, resourceFraction, "/" + prefixBase + "-resources")) {
+            nodeTypes.add(prefix + ":None");
+        }
+        return nodeTypes;
+    }
+
+    @Override
+    public void close() throws Exception {
+        engine.shutdown().get();
+    }
+}
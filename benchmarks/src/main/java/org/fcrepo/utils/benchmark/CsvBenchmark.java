@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils.benchmark;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.fcrepo.utils.RunJournal;
+import org.fcrepo.utils.SpuriousNamespaceGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+
+/**
+ * CSV read and write paths: reopening the writer for every row against the journaled long-lived
+ * writers, and reading the work file back.
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CsvBenchmark {
+
+    @Param({"10000"})
+    public int rows;
+
+    private File directory;
+
+    private File inputFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("csv-benchmark").toFile();
+        inputFile = new File(directory, "input.csv");
+        try (CSVWriter writer = new CSVWriter(new FileWriter(inputFile))) {
+            writer.writeNext(new String[] {"namespace", "namespaceUri", "nodeType", "resource"});
+            for (int i = 0; i < rows; i++) {
+                writer.writeNext(row(i));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static String[] row(final int i) {
+        return new String[] {"ns" + i, SpuriousNamespaceGenerator.namespaceUri("ns", i), "ns" + i + ":None",
+            "/rest/resource/" + i};
+    }
+
+    @Benchmark
+    public void writeReopenPerRow() throws IOException {
+        final File output = new File(directory, "reopen.csv");
+        output.delete();
+        for (int i = 0; i < rows; i++) {
+            try (CSVWriter writer = new CSVWriter(new FileWriter(output, true))) {
+                writer.writeNext(row(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public void writeJournaled() throws IOException {
+        final File journalFile = new File(directory, "journaled.journal");
+        journalFile.delete();
+        try (RunJournal journal = RunJournal.open(journalFile.getPath())) {
+            final RunJournal.Output output = journal.output(new File(directory, "journaled.csv").getPath(), true,
+                    null);
+            for (int i = 0; i < rows; i++) {
+                output.write(row(i));
+                journal.processed(i + 1);
+            }
+            journal.complete();
+        }
+    }
+
+    @Benchmark
+    public void read(final Blackhole blackhole) throws IOException {
+        try (CSVReader reader = new CSVReader(new FileReader(inputFile))) {
+            reader.skip(1);
+            final Iterator<String[]> csvRowIterator = reader.iterator();
+            while (csvRowIterator.hasNext()) {
+                blackhole.consume(csvRowIterator.next());
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import org.fcrepo.utils.ExistenceProbe;
+import org.fcrepo.utils.IndexProvisioner;
+import org.fcrepo.utils.NamespaceUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Read-only hot paths: the registry snapshot with its namespace uri relationships and the per-nodetype
+ * resource query loop.
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NamespaceUtilBenchmark {
+
+    @Param({"1000"})
+    public int namespaces;
+
+    @Param({"1000"})
+    public int resources;
+
+    @Param({"0.1"})
+    public double resourceFraction;
+
+    // "none" leaves the resource queries to scan, "nodetype" provisions the nodetype index first
+    @Param({"none", "nodetype"})
+    public String index;
+
+    private BenchmarkRepository repository;
+
+    private Session session;
+
+    private NamespaceUtil namespaceUtil;
+
+    private List<String> nodeTypes;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        repository = new BenchmarkRepository();
+        session = repository.login();
+        nodeTypes = BenchmarkRepository.seed(session, "ns", namespaces, resources, resourceFraction);
+        if ("nodetype".equals(index)) {
+            new IndexProvisioner(session, IndexProvisioner.DEFAULT_INDEX_NAME).provision("local", 30);
+        }
+        namespaceUtil = NamespaceUtil.open(session, () -> session);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        namespaceUtil.close();
+        session.logout();
+        repository.close();
+    }
+
+    @Benchmark
+    public Object takeRegistrySnapshot() throws RepositoryException {
+        return namespaceUtil.takeRegistrySnapshot();
+    }
+
+    @Benchmark
+    public void selectStarQueryLoop(final Blackhole blackhole) throws RepositoryException {
+        final QueryManager queryManager = session.getWorkspace().getQueryManager();
+        for (final String nodeType : nodeTypes) {
+            final Query query = queryManager.createQuery("SELECT * FROM [" + nodeType + "]", Query.JCR_SQL2);
+            blackhole.consume(query.execute().getRows().hasNext());
+        }
+    }
+
+    @Benchmark
+    public void probeQueryLoop(final Blackhole blackhole) throws RepositoryException {
+        // A fresh probe per invocation so the cache does not hide the query cost
+        final ExistenceProbe probe = new ExistenceProbe(session);
+        for (final String nodeType : nodeTypes) {
+            blackhole.consume(probe.hasResources(nodeType));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils.benchmark;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeTypeManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Registry mutations: nodetype unregistration one at a time and in a batch, and namespace
+ * unregistration. Each invocation works on a freshly registered set on top of a registry
+ * already holding the background namespaces, and whatever it leaves registered is removed again
+ * outside the measurement so the registry does not grow from one invocation to the next.
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UnregisterBenchmark {
+
+    @Param({"1000"})
+    public int namespaces;
+
+    @Param({"100"})
+    public int unregisterCount;
+
+    private BenchmarkRepository repository;
+
+    private Session session;
+
+    private NodeTypeManager nodeTypeManager;
+
+    private NamespaceRegistry namespaceRegistry;
+
+    private int invocation = 0;
+
+    private String prefixBase;
+
+    private List<String> nodeTypes;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        repository = new BenchmarkRepository();
+        session = repository.login();
+        nodeTypeManager = session.getWorkspace().getNodeTypeManager();
+        namespaceRegistry = session.getWorkspace().getNamespaceRegistry();
+        BenchmarkRepository.seed(session, "ns", namespaces, 0, 0);
+    }
+
+    @Setup(Level.Invocation)
+    public void register(final BenchmarkParams params) throws RepositoryException {
+        prefixBase = "ub" + (invocation++) + "x";
+        nodeTypes = BenchmarkRepository.seed(session, prefixBase, unregisterCount, 0, 0);
+        // The namespace benchmark measures the namespaces alone, their nodetypes go before the clock starts
+        if (params.getBenchmark().endsWith(".unregisterNamespaces")) {
+            nodeTypeManager.unregisterNodeTypes(nodeTypes.toArray(new String[nodeTypes.size()]));
+            session.save();
+        }
+    }
+
+    // The nodetype benchmarks leave the namespaces of their nodetypes registered
+    @TearDown(Level.Invocation)
+    public void unregisterRemaining() throws RepositoryException {
+        final Set<String> registered = new HashSet<String>(Arrays.asList(namespaceRegistry.getPrefixes()));
+        for (final String nodeType : nodeTypes) {
+            final String prefix = nodeType.substring(0, nodeType.indexOf(':'));
+            if (registered.contains(prefix)) {
+                namespaceRegistry.unregisterNamespace(prefix);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        session.logout();
+        repository.close();
+    }
+
+    @Benchmark
+    public void unregisterNodeTypesOneByOne() throws RepositoryException {
+        for (final String nodeType : nodeTypes) {
+            nodeTypeManager.unregisterNodeType(nodeType);
+            session.save();
+        }
+    }
+
+    @Benchmark
+    public void unregisterNodeTypesBatch() throws RepositoryException {
+        nodeTypeManager.unregisterNodeTypes(nodeTypes.toArray(new String[nodeTypes.size()]));
+        session.save();
+    }
+
+    @Benchmark
+    public void unregisterNamespaces() throws RepositoryException {
+        for (final String nodeType : nodeTypes) {
+            namespaceRegistry.unregisterNamespace(nodeType.substring(0, nodeType.indexOf(':')));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+/**
+ * Token bucket whose refill rate adapts to how the server is coping. The rate is cut in half on a
+ * 5xx response and by a fifth when latency climbs well above its recent average, then grows back
+ * by a fixed step per healthy response (additive increase, multiplicative decrease). Cuts are
+ * spaced at least one cooldown apart so a burst of bad responses counts once. The latency
+ * baseline follows every response, so a server that stays slower becomes the new normal and the
+ * rate recovers.
+ **/
+public class AdaptiveRateLimiter {
+
+    private static final Logger LOGGER = getLogger(AdaptiveRateLimiter.class);
+
+    private static final long COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Latency this many times the healthy baseline counts as the server slowing down
+    private static final double LATENCY_FACTOR = 3.0;
+
+    // Weight of a new sample in the latency baseline
+    private static final double BASELINE_WEIGHT = 0.05;
+
+    private final double minRate;
+
+    private final double maxRate;
+
+    private final double increaseStep;
+
+    private final double burst;
+
+    private double rate;
+
+    private double tokens;
+
+    private long lastRefill = System.nanoTime();
+
+    // Far enough back that the first decrease is never held off by the cooldown
+    private long lastDecrease = System.nanoTime() - COOLDOWN_NANOS;
+
+    private double baselineMillis = -1;
+
+    /**
+     * @param initialRate starting permits per second
+     * @param minRate floor the rate never drops below
+     * @param maxRate ceiling the rate never grows above
+     * @param burst most permits that can build up while idle
+     **/
+    public AdaptiveRateLimiter(final double initialRate, final double minRate, final double maxRate,
+            final double burst) {
+        this.minRate = Math.max(0.01, minRate);
+        this.maxRate = Math.max(this.minRate, maxRate);
+        this.rate = Math.min(this.maxRate, Math.max(this.minRate, initialRate));
+        this.burst = Math.max(1, burst);
+        this.increaseStep = Math.max(0.01, this.maxRate / 100);
+        this.tokens = 1;
+    }
+
+    /**
+     * Block until a permit is available
+     **/
+    public void acquire() throws InterruptedException {
+        while (true) {
+            final long waitNanos;
+            synchronized (this) {
+                refill();
+                if (tokens >= 1) {
+                    tokens -= 1;
+                    return;
+                }
+                waitNanos = (long) ((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+    }
+
+    /**
+     * Feed back the outcome of a request
+     *
+     * @param status HTTP status code, 0 when the request failed without a response
+     * @param latencyMillis time taken by the request
+     **/
+    public synchronized void onResponse(final int status, final long latencyMillis) {
+        // Credit the tokens accrued so far at the rate they accrued at
+        refill();
+        if (status >= 500 || status == 0 || status == 429) {
+            decrease(0.5, "status " + status);
+            return;
+        }
+        if (baselineMillis < 0) {
+            baselineMillis = latencyMillis;
+        }
+        final double previousBaseline = baselineMillis;
+        baselineMillis += (latencyMillis - baselineMillis) * BASELINE_WEIGHT;
+        if (latencyMillis > previousBaseline * LATENCY_FACTOR) {
+            decrease(0.8, "latency " + latencyMillis + "ms against a baseline of " + (long) previousBaseline + "ms");
+            return;
+        }
+        rate = Math.min(maxRate, rate + increaseStep);
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    private void decrease(final double factor, final String reason) {
+        final long now = System.nanoTime();
+        if (now - lastDecrease < COOLDOWN_NANOS) {
+            return;
+        }
+        lastDecrease = now;
+        rate = Math.max(minRate, rate * factor);
+        tokens = Math.min(tokens, 1);
+        LOGGER.info("  Backing off to " + String.format("%.2f", rate) + " requests/s after " + reason);
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+}
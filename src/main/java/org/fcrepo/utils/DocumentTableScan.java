@@ -0,0 +1,282 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.modeshape.schematic.document.Bson;
+import org.modeshape.schematic.document.Document;
+import org.slf4j.Logger;
+
+import com.opencsv.CSVWriter;
+
+/**
+ * Offline scan of the document table written by ModeShape's "db" persistence. Every stored node
+ * document is read over a single streaming, read-only JDBC cursor, decoded on worker threads and
+ * searched for spurious None nodetype names and tx: namespace URIs. No JCR session or query engine
+ * is involved, so the repository should not be running while the table is scanned.
+ *
+ * ModeShape stores NAME values in their expanded "{namespaceUri}localName" form, so a spurious
+ * nodetype is found as "{...tx:...}None" and reported with its full namespace URI, the column the
+ * list CSV can be joined on. A prefixed nsXXX:None name, e.g. in a string value, is reported too.
+ **/
+public class DocumentTableScan {
+
+    private static final Logger LOGGER = getLogger(DocumentTableScan.class);
+
+    private static final String TRANSACTION = "tx:";
+
+    private static final Pattern EXPANDED_NAME = Pattern.compile("\\{([^{}\\s]+)\\}([^\\s{}\"'<>,]*)");
+
+    private static final Pattern PREFIXED_NODE_TYPE = Pattern.compile("\\bns\\d+:None\\b");
+
+    private static final Pattern URI = Pattern.compile("\\b[A-Za-z][A-Za-z0-9+.-]*:[^\\s\"'{}<>]+");
+
+    private static final String[] HEADER = {"kind", "reference", "namespaceUri", "documentId"};
+
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    private final String url;
+
+    private final String user;
+
+    private final String password;
+
+    private final String table;
+
+    private final int fetchSize;
+
+    private final int decoders;
+
+    private final AtomicLong documentCount = new AtomicLong();
+
+    private final AtomicLong referenceCount = new AtomicLong();
+
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /**
+     * @param url JDBC url of the ModeShape database
+     * @param user database user, may be null
+     * @param password database password, may be null
+     * @param table name of the ModeShape document table
+     * @param fetchSize rows fetched from the cursor per round trip
+     * @param decoders number of threads decoding documents
+     **/
+    public DocumentTableScan(final String url, final String user, final String password, final String table,
+            final int fetchSize, final int decoders) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.table = table;
+        this.fetchSize = fetchSize;
+        this.decoders = Math.max(1, decoders);
+    }
+
+    /**
+     * Create a scan from the db.url, db.user, db.password, db.table, db.fetch.size and
+     * db.decoders properties
+     **/
+    public static DocumentTableScan fromProperties() {
+        return new DocumentTableScan(
+                NamespaceUtil.getPropertyOrExit("db.url", "jdbc:postgresql://localhost/fcrepo_modeshape5"),
+                System.getProperty("db.user"),
+                System.getProperty("db.password"),
+                System.getProperty("db.table", "MODESHAPE_REPOSITORY"),
+                Integer.getInteger("db.fetch.size", 5000),
+                Integer.getInteger("db.decoders", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Scan the table, writing one "kind","reference","namespaceUri","documentId" row per reference
+     * found, where kind is either nodeType or namespaceUri. The namespaceUri is empty for a nodetype
+     * only found by its prefixed name.
+     **/
+    public void scan(final String filepath) throws SQLException, IOException {
+        LOGGER.info("Scanning " + table + " at " + url + " with " + decoders + " decoders");
+        final long start = System.currentTimeMillis();
+        final ExecutorService executor = Executors.newFixedThreadPool(decoders);
+        // Bounds the documents read ahead of the decoders, and so the memory they hold
+        final Semaphore inFlight = new Semaphore(decoders * 4);
+
+        try (Connection connection = DriverManager.getConnection(url, user, password);
+             CSVWriter writer = new CSVWriter(new FileWriter(filepath))) {
+            connection.setReadOnly(true);
+            // Postgres only streams with a cursor inside a transaction
+            connection.setAutoCommit(false);
+            writer.writeNext(HEADER);
+
+            try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY)) {
+                statement.setFetchSize(streamingFetchSize());
+                try (ResultSet results = statement.executeQuery("SELECT ID, CONTENT FROM " + table)) {
+                    while (results.next()) {
+                        final String id = results.getString(1);
+                        final byte[] content = results.getBytes(2);
+                        inFlight.acquire();
+                        executor.submit(() -> {
+                            try {
+                                final Map<String, String[]> references = extractReferences(content);
+                                synchronized (writer) {
+                                    for (final Map.Entry<String, String[]> reference : references.entrySet()) {
+                                        writer.writeNext(new String[] {reference.getValue()[0], reference.getKey(),
+                                            reference.getValue()[1], id});
+                                    }
+                                }
+                                referenceCount.addAndGet(references.size());
+                            } catch (IOException | RuntimeException e) {
+                                LOGGER.warn("Unable to decode document " + id + ": " + e);
+                                failureCount.incrementAndGet();
+                            } finally {
+                                inFlight.release();
+                            }
+                        });
+                        if (documentCount.incrementAndGet() % PROGRESS_INTERVAL == 0) {
+                            LOGGER.info("  Read " + documentCount.get() + " documents, "
+                                    + referenceCount.get() + " references so far");
+                        }
+                    }
+                }
+            } finally {
+                connection.rollback();
+            }
+
+            executor.shutdown();
+            while (!executor.isTerminated()) {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning " + table, e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        LOGGER.info("Scanned " + documentCount.get() + " documents in " + (System.currentTimeMillis() - start)
+                + "ms, found " + referenceCount.get() + " references");
+        if (failureCount.get() > 0) {
+            LOGGER.warn(failureCount.get() + " documents could not be decoded");
+        }
+    }
+
+    // MySQL Connector/J only streams rows when the fetch size is Integer.MIN_VALUE, unless cursor fetch is on
+    private int streamingFetchSize() {
+        if (url.startsWith("jdbc:mysql:") && !url.contains("useCursorFetch=true")) {
+            return Integer.MIN_VALUE;
+        }
+        return fetchSize;
+    }
+
+    /**
+     * Decode a stored document, compressed or not, and collect the spurious references in it,
+     * mapped to their kind and namespace URI
+     **/
+    static Map<String, String[]> extractReferences(final byte[] content) throws IOException {
+        final Map<String, String[]> references = new TreeMap<String, String[]>();
+        if (content == null) {
+            return references;
+        }
+
+        final Document document;
+        try (InputStream stream = open(content)) {
+            document = Bson.read(stream);
+        }
+
+        // Explicit stack rather than recursion, documents nest child references and properties
+        final Deque<Document> pending = new ArrayDeque<Document>();
+        pending.push(document);
+        while (!pending.isEmpty()) {
+            for (final Document.Field field : pending.pop().fields()) {
+                collect(field.getName(), references);
+                final Object value = field.getValue();
+                if (value instanceof Document) {
+                    pending.push((Document) value);
+                } else if (value instanceof String) {
+                    collect((String) value, references);
+                }
+            }
+        }
+        return references;
+    }
+
+    private static InputStream open(final byte[] content) throws IOException {
+        final InputStream stream = new ByteArrayInputStream(content);
+        // ModeShape compresses documents by default, detect the GZIP magic number
+        if (content.length > 1 && (content[0] & 0xff) == 0x1f && (content[1] & 0xff) == 0x8b) {
+            return new BufferedInputStream(new GZIPInputStream(stream));
+        }
+        return stream;
+    }
+
+    // Field names are searched too, properties are keyed by their namespace URI
+    static void collect(final String text, final Map<String, String[]> references) {
+        if (text.indexOf(':') < 0) {
+            return;
+        }
+        if (text.contains(TRANSACTION)) {
+            final Matcher name = EXPANDED_NAME.matcher(text);
+            while (name.find()) {
+                if ("None".equals(name.group(2)) && name.group(1).contains(TRANSACTION)) {
+                    references.put(name.group(), new String[] {"nodeType", name.group(1)});
+                }
+            }
+            final Matcher uri = URI.matcher(text);
+            while (uri.find()) {
+                if (uri.group().contains(TRANSACTION)) {
+                    references.put(uri.group(), new String[] {"namespaceUri", uri.group()});
+                }
+            }
+        }
+        final Matcher prefixed = PREFIXED_NODE_TYPE.matcher(text);
+        while (prefixed.find()) {
+            references.putIfAbsent(prefixed.group(), new String[] {"nodeType", ""});
+        }
+    }
+
+    public long getDocumentCount() {
+        return documentCount.get();
+    }
+
+    public long getReferenceCount() {
+        return referenceCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+}
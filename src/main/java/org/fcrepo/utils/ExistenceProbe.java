@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Answers "which resources use this nodetype" with path-only JCR queries, caching the
+ * answer per nodetype for the length of the run. With a watchdog each query runs against a
+ * deadline and fails with a {@link QueryTimeoutException} once it passes.
+ **/
+public class ExistenceProbe {
+
+    // Cached marker for a nodetype known to have no resources
+    private static final String NONE = "";
+
+    private final Session session;
+
+    private final QueryManager queryManager;
+
+    private final Map<String, String> firstPaths;
+
+    private final AtomicLong queryCount;
+
+    private final RunMetrics.Timer queryTimer;
+
+    private final QueryWatchdog watchdog;
+
+    // Queries run on this probe's own session, for session recycling
+    private final AtomicLong sessionQueryCount = new AtomicLong();
+
+    public ExistenceProbe(final Session session) throws RepositoryException {
+        this(session, new RunMetrics.Timer("query"));
+    }
+
+    public ExistenceProbe(final Session session, final RunMetrics.Timer queryTimer) throws RepositoryException {
+        this(session, queryTimer, null);
+    }
+
+    /**
+     * @param watchdog deadline for each query, or null to let queries run as long as they take
+     **/
+    public ExistenceProbe(final Session session, final RunMetrics.Timer queryTimer, final QueryWatchdog watchdog)
+            throws RepositoryException {
+        this(session, new ConcurrentHashMap<String, String>(), new AtomicLong(), queryTimer, watchdog);
+    }
+
+    private ExistenceProbe(final Session session, final Map<String, String> firstPaths, final AtomicLong queryCount,
+            final RunMetrics.Timer queryTimer, final QueryWatchdog watchdog) throws RepositoryException {
+        this.session = session;
+        this.queryManager = session.getWorkspace().getQueryManager();
+        this.firstPaths = firstPaths;
+        this.queryCount = queryCount;
+        this.queryTimer = queryTimer;
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * Create a probe querying through another session that shares this probe's cache and counters
+     **/
+    public ExistenceProbe withSession(final Session otherSession) throws RepositoryException {
+        return new ExistenceProbe(otherSession, firstPaths, queryCount, queryTimer, watchdog);
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Get the path of one resource using the nodetype, or null if there is none
+     **/
+    public String firstPath(final String nodeType) throws RepositoryException {
+        String path = firstPaths.get(nodeType);
+        if (path == null) {
+            final List<String> paths = query(nodeType, 1);
+            path = paths.isEmpty() ? NONE : paths.get(0);
+            firstPaths.put(nodeType, path);
+        }
+        return NONE.equals(path) ? null : path;
+    }
+
+    public boolean hasResources(final String nodeType) throws RepositoryException {
+        return firstPath(nodeType) != null;
+    }
+
+    /**
+     * Get the paths of all resources using the nodetype. Not cached, but primes the
+     * single-path cache used by {@link #firstPath(String)}.
+     **/
+    public List<String> allPaths(final String nodeType) throws RepositoryException {
+        final List<String> paths = query(nodeType, 0);
+        firstPaths.put(nodeType, paths.isEmpty() ? NONE : paths.get(0));
+        return paths;
+    }
+
+    /**
+     * Drop the cached answer for a nodetype, e.g. after resources have been patched
+     **/
+    public void forget(final String nodeType) {
+        firstPaths.remove(nodeType);
+    }
+
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    public long getSessionQueryCount() {
+        return sessionQueryCount.get();
+    }
+
+    // Project only the path so ModeShape does not materialize full rows, limit 0 means unlimited. A query
+    // cancelled at its deadline may still return rows, so an expired deadline fails the query whatever it returned.
+    private List<String> query(final String nodeType, final long limit) throws RepositoryException {
+        final Query query = queryManager.createQuery(
+                "SELECT [jcr:path] FROM [" + nodeType + "]",
+                Query.JCR_SQL2
+        );
+        if (limit > 0) {
+            query.setLimit(limit);
+        }
+        queryCount.incrementAndGet();
+        sessionQueryCount.incrementAndGet();
+
+        final List<String> paths = new ArrayList<String>();
+        final QueryWatchdog.Deadline deadline = watchdog == null ? null
+                : watchdog.arm(query, watchdog.budgetMillis(queryTimer));
+        final RunMetrics.Sample sample = queryTimer.start(nodeType);
+        try {
+            final RowIterator rowIterator = query.execute().getRows();
+            while (rowIterator.hasNext() && (deadline == null || ! deadline.isExpired())) {
+                paths.add(rowIterator.nextRow().getPath());
+            }
+        } catch (RepositoryException e) {
+            if (deadline != null && deadline.isExpired()) {
+                throw new QueryTimeoutException(nodeType, deadline.getMillis(), e);
+            }
+            throw e;
+        } finally {
+            if (deadline != null) {
+                deadline.disarm();
+            }
+            sample.stop();
+        }
+        if (deadline != null && deadline.isExpired()) {
+            throw new QueryTimeoutException(nodeType, deadline.getMillis());
+        }
+        return paths;
+    }
+}
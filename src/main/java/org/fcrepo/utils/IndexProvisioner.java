@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.modeshape.jcr.api.Workspace;
+import org.modeshape.jcr.api.index.IndexDefinition;
+import org.modeshape.jcr.api.index.IndexDefinition.IndexKind;
+import org.modeshape.jcr.api.index.IndexDefinitionTemplate;
+import org.modeshape.jcr.api.index.IndexManager;
+import org.modeshape.jcr.api.index.IndexManager.IndexStatus;
+import org.slf4j.Logger;
+
+/**
+ * Defines and drops the nodetype index that lets "SELECT ... FROM [nsXXX:None]" queries look the
+ * nodetype up instead of scanning every node. ModeShape plans a query on a mixin as a
+ * jcr:mixinTypes criterion, which its nodeType index kind never serves as that only holds the
+ * primary type, so this is a value index on jcr:mixinTypes. The index lives in one of the index
+ * providers configured in repository.json, ModeShape cannot add a provider at runtime.
+ **/
+public class IndexProvisioner {
+
+    private static final Logger LOGGER = getLogger(IndexProvisioner.class);
+
+    public static final String DEFAULT_INDEX_NAME = "nsutil_nodetypes";
+
+    private static final String MIXIN_TYPES = "jcr:mixinTypes";
+
+    private final Session session;
+
+    private final IndexManager indexManager;
+
+    private final String indexName;
+
+    public IndexProvisioner(final Session session, final String indexName) throws RepositoryException {
+        this.session = session;
+        this.indexManager = ((Workspace) session.getWorkspace()).getIndexManager();
+        this.indexName = indexName;
+    }
+
+    /**
+     * Whether the workspace has an enabled nodetype index the resource queries can use
+     **/
+    public static boolean hasNodeTypeIndex(final Session session) throws RepositoryException {
+        final IndexManager indexManager = ((Workspace) session.getWorkspace()).getIndexManager();
+        final String workspaceName = session.getWorkspace().getName();
+        for (final IndexDefinition definition : indexManager.getIndexDefinitions().values()) {
+            if (definition.getKind() == IndexKind.VALUE && definition.size() == 1
+                    && MIXIN_TYPES.equals(definition.getColumnDefinition(0).getPropertyName())
+                    && definition.isEnabled() && indexManager.getIndexStatus(definition.getProviderName(),
+                            definition.getName(), workspaceName) == IndexStatus.ENABLED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Define the index and wait until the repository has been reindexed into it
+     *
+     * @param providerName index provider to use, or null for the only configured one
+     * @param progressSeconds how often to report while reindexing
+     * @return whether the index is ready for queries
+     **/
+    public boolean provision(final String providerName, final long progressSeconds)
+            throws RepositoryException, InterruptedException {
+        final String provider = providerName != null ? providerName : onlyProvider();
+        if (provider == null) {
+            return false;
+        }
+
+        final IndexDefinitionTemplate template = indexManager.createIndexDefinitionTemplate()
+                .setName(indexName)
+                .setProviderName(provider)
+                .setKind(IndexKind.VALUE)
+                .setNodeTypeName("nt:base")
+                .setDescription("Mixin types of every node, for the namespace utility's resource queries")
+                .setSynchronous(true)
+                .setAllWorkspaces()
+                .setColumnDefinitions(indexManager.createIndexColumnDefinitionTemplate()
+                        .setPropertyName(MIXIN_TYPES)
+                        .setColumnType(PropertyType.NAME));
+
+        final long start = System.currentTimeMillis();
+        LOGGER.info("Registering nodetype index " + indexName + " with provider " + provider);
+        indexManager.registerIndex(template, true);
+
+        final String workspaceName = session.getWorkspace().getName();
+        long nextReport = start + TimeUnit.SECONDS.toMillis(progressSeconds);
+        while (true) {
+            final IndexStatus status = indexManager.getIndexStatus(provider, indexName, workspaceName);
+            if (status == IndexStatus.ENABLED) {
+                break;
+            }
+            // The provider creates the index asynchronously and keeps it DISABLED while it scans the existing
+            // content into it, so only a definition that was removed or disabled meanwhile ends the wait
+            final IndexDefinition definition = indexManager.getIndexDefinitions().get(indexName);
+            if (definition == null || !definition.isEnabled()) {
+                LOGGER.error("Index " + indexName + " is " + status + " after registering it");
+                return false;
+            }
+            if (System.currentTimeMillis() >= nextReport) {
+                LOGGER.info("  Reindexing into " + indexName + ", "
+                        + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - start) + "s so far");
+                nextReport += TimeUnit.SECONDS.toMillis(progressSeconds);
+            }
+            TimeUnit.MILLISECONDS.sleep(500);
+        }
+        LOGGER.info("Index " + indexName + " is ready after " + (System.currentTimeMillis() - start) + "ms");
+        return true;
+    }
+
+    /**
+     * Drop the index once the cleanup no longer needs it
+     **/
+    public void drop() throws RepositoryException {
+        if (! indexManager.getIndexDefinitions().containsKey(indexName)) {
+            LOGGER.info("No index named " + indexName + " to drop");
+            return;
+        }
+        indexManager.unregisterIndexes(indexName);
+        LOGGER.info("Dropped index " + indexName);
+    }
+
+    private String onlyProvider() {
+        if (indexManager.getProviderNames().size() == 1) {
+            return indexManager.getProviderNames().iterator().next();
+        }
+        if (indexManager.getProviderNames().isEmpty()) {
+            LOGGER.error("No index provider configured, add one under \"indexProviders\" in repository.json");
+        } else {
+            LOGGER.error("Several index providers configured, choose one with -Dindex.provider="
+                    + indexManager.getProviderNames());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a timed JCR call. Only loaded when the running JVM has JFR, see
+ * {@link RunMetrics}.
+ **/
+@Name("org.fcrepo.utils.JcrCall")
+@Label("JCR Call")
+@Category("Namespace Utility")
+@Description("A JCR query, unregistration or save made by the namespace utility")
+class JcrCallEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Target")
+    String target;
+}
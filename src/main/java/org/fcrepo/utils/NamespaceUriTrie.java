@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Trie of namespace URIs keyed by path segment, where each segment runs up to and including a "/".
+ * A URI is the parent of another when it is a proper prefix of it ending in "/", at any depth.
+ **/
+public class NamespaceUriTrie {
+
+    private static class TrieNode {
+
+        private final TrieNode parent;
+
+        // Sorted so that traversal order, and therefore any cleanup plan, is deterministic
+        private final Map<String, TrieNode> children = new TreeMap<String, TrieNode>();
+
+        private final String uri;
+
+        private boolean present = false;
+
+        private int presentDescendants = 0;
+
+        private TrieNode(final TrieNode parent, final String uri) {
+            this.parent = parent;
+            this.uri = uri;
+        }
+    }
+
+    private final TrieNode root = new TrieNode(null, "");
+
+    private int size = 0;
+
+    /**
+     * Add a URI, returns false if it was already present
+     **/
+    public boolean add(final String uri) {
+        final TrieNode node = getOrCreate(uri);
+        if (node.present) {
+            return false;
+        }
+        node.present = true;
+        size++;
+        for (TrieNode ancestor = node.parent; ancestor != null; ancestor = ancestor.parent) {
+            ancestor.presentDescendants++;
+        }
+        return true;
+    }
+
+    /**
+     * Remove a URI, returns false if it was not present
+     **/
+    public boolean remove(final String uri) {
+        final TrieNode node = find(uri);
+        if (node == null || !node.present) {
+            return false;
+        }
+        node.present = false;
+        size--;
+        for (TrieNode ancestor = node.parent; ancestor != null; ancestor = ancestor.parent) {
+            ancestor.presentDescendants--;
+        }
+        return true;
+    }
+
+    public boolean contains(final String uri) {
+        final TrieNode node = find(uri);
+        return node != null && node.present;
+    }
+
+    /**
+     * Whether any URI nested below this one is still present
+     **/
+    public boolean hasChildren(final String uri) {
+        final TrieNode node = find(uri);
+        return node != null && node.presentDescendants > 0;
+    }
+
+    /**
+     * Get the nearest present URI this one is nested below, or null
+     **/
+    public String getParent(final String uri) {
+        final TrieNode node = find(uri);
+        if (node == null) {
+            return null;
+        }
+        for (TrieNode ancestor = node.parent; ancestor != null; ancestor = ancestor.parent) {
+            if (ancestor.present) {
+                return ancestor.uri;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the present URIs ordered so every URI comes after all of the URIs nested below it
+     **/
+    public List<String> leavesFirst() {
+        final List<String> ordered = new ArrayList<String>(size);
+        // Iterative post-order, nesting depth is unbounded
+        final Deque<TrieNode> nodes = new ArrayDeque<TrieNode>();
+        final Deque<Iterator<TrieNode>> childIterators = new ArrayDeque<Iterator<TrieNode>>();
+        nodes.push(root);
+        childIterators.push(root.children.values().iterator());
+        while (!nodes.isEmpty()) {
+            final Iterator<TrieNode> children = childIterators.peek();
+            if (children.hasNext()) {
+                final TrieNode child = children.next();
+                nodes.push(child);
+                childIterators.push(child.children.values().iterator());
+            } else {
+                final TrieNode node = nodes.pop();
+                childIterators.pop();
+                if (node.present) {
+                    ordered.add(node.uri);
+                }
+            }
+        }
+        return ordered;
+    }
+
+    private TrieNode getOrCreate(final String uri) {
+        TrieNode node = root;
+        int start = 0;
+        while (start < uri.length()) {
+            final int end = segmentEnd(uri, start);
+            final String segment = uri.substring(start, end);
+            TrieNode child = node.children.get(segment);
+            if (child == null) {
+                child = new TrieNode(node, uri.substring(0, end));
+                node.children.put(segment, child);
+            }
+            node = child;
+            start = end;
+        }
+        return node;
+    }
+
+    private TrieNode find(final String uri) {
+        TrieNode node = root;
+        int start = 0;
+        while (node != null && start < uri.length()) {
+            final int end = segmentEnd(uri, start);
+            node = node.children.get(uri.substring(start, end));
+            start = end;
+        }
+        return node;
+    }
+
+    // A segment ends just after the next "/", or at the end of the URI
+    private static int segmentEnd(final String uri, final int start) {
+        final int slash = uri.indexOf('/', start);
+        return slash < 0 ? uri.length() : slash + 1;
+    }
+}
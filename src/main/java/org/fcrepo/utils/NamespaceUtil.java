@@ -15,11 +15,8 @@
  */
 package org.fcrepo.utils;
 
-import static org.fcrepo.kernel.modeshape.utils.NamespaceTools.getNamespaces;
 import static org.slf4j.LoggerFactory.getLogger;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -27,17 +24,17 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 import javax.inject.Inject;
 import javax.jcr.NamespaceException;
@@ -45,17 +42,11 @@ import javax.jcr.NamespaceRegistry;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Workspace;
-import javax.jcr.nodetype.NodeTypeIterator;
 import javax.jcr.query.InvalidQueryException;
-import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
-import javax.jcr.query.Row;
-import javax.jcr.query.RowIterator;
 
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.modeshape.jcr.api.nodetype.NodeTypeManager;
-import org.modeshape.jcr.value.ValueFormatException;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.context.ConfigurableApplicationContext;
@@ -70,7 +61,7 @@ import com.opencsv.CSVWriter;
  * @author acoburn
  * @since May 3, 2016
  **/
-public class NamespaceUtil {
+public class NamespaceUtil implements AutoCloseable {
 
     private final Logger LOGGER = getLogger(NamespaceUtil.class);
 
@@ -87,21 +78,123 @@ public class NamespaceUtil {
 
     private NodeTypeManager nodeTypeManager;
 
-    private Map<String, Set<String>> parentNamespaceUris = new HashMap<String, Set<String>>();;
+    private ExistenceProbe existenceProbe;
 
-    private Map<String, Set<String>> childNamespaceUris = new HashMap<String, Set<String>>();;
+    private QueryWatchdog queryWatchdog;
+
+    private WorkerPool workerPool;
+
+    private SessionRecycler sessionRecycler;
+
+    // Unregistrations and saves on the main session since it was last recycled
+    private long sessionWrites = 0;
+
+    private RunMetrics metrics = new RunMetrics();
+
+    private RegistrySnapshot registrySnapshot;
 
     private String startTime;
 
+    private NodeTypeIndex nodeTypeIndex;
+
+    private boolean nodeTypeIndexFromDisk = false;
+
     /**
      * Start and run the namespace utility
      **/
     public static void main(final String[] args) {
+        // The offline scan reads the database directly, without starting the repository
+        if ("db-scan".equalsIgnoreCase(System.getProperty("command"))) {
+            try {
+                DocumentTableScan.fromProperties().scan(getPropertyOrExit("filepath", "/path/to/output/file"));
+            } catch (SQLException ex) {
+                ex.printStackTrace();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+        // Solr lookups only need the index, not the repository
+        if ("solr-resources".equalsIgnoreCase(System.getProperty("command"))) {
+            try (SolrResourceLookup lookup = SolrResourceLookup.fromProperties()) {
+                lookup.addResources(getPropertyOrExit("filepath", "/path/to/input/file"));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+        // Work file conversion is plain file IO
+        if ("workfile-import".equalsIgnoreCase(System.getProperty("command"))) {
+            final String filepath = getPropertyOrExit("filepath", "/path/to/input/file.csv");
+            try {
+                WorkFile.importCsv(filepath, filepath.replaceFirst("(\\.csv)?$", WorkFile.EXTENSION));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+        if ("workfile-export".equalsIgnoreCase(System.getProperty("command"))) {
+            final String filepath = getPropertyOrExit("filepath", "/path/to/input/file" + WorkFile.EXTENSION);
+            try (WorkFile workFile = WorkFile.open(filepath)) {
+                workFile.exportCsv(filepath.replaceFirst(Pattern.quote(WorkFile.EXTENSION) + "$", "") + "-export.csv");
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+        // Shards are split and merged on the shared directory alone
+        if ("shard-split".equalsIgnoreCase(System.getProperty("command"))) {
+            try {
+                ShardDirectory.fromProperties().split(getPropertyOrExit("filepath", "/path/to/input/file"),
+                        Integer.parseInt(getPropertyOrExit("shard.count", "8")));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+        if ("shard-merge".equalsIgnoreCase(System.getProperty("command"))) {
+            try {
+                final ShardDirectory shards = ShardDirectory.fromProperties();
+                final String name = System.getProperty("shard.name", ShardDirectory.LIST);
+                final Integer shardCount = Integer.getInteger("shard.count");
+                shards.merge(name, getPropertyOrExit("filepath", "/path/to/output/file"),
+                        shardCount != null ? shardCount : shards.countShards(name));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+        // Resources are patched through the REST API of the running fcrepo
+        if ("patch".equalsIgnoreCase(System.getProperty("command"))) {
+            try (ResourcePatcher patcher = ResourcePatcher.fromProperties()) {
+                patcher.patch(getPropertyOrExit("filepath", "/path/to/input/file"));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+
+        // Start only the ModeShape engine, skipping the fcrepo kernel and its Spring context
+        if (Boolean.parseBoolean(System.getProperty("fast.start"))) {
+            final String configuration = getPropertyOrExit("fcrepo.modeshape.configuration", "/repo.json");
+            try (RepositoryBootstrap bootstrap = RepositoryBootstrap.start(configuration, needsQueryIndexes())) {
+                final Supplier<Session> sessions = bootstrap.sessions();
+                new NamespaceUtil().run(sessions.get(), sessions);
+            } catch (RepositoryException ex) {
+                ex.printStackTrace();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return;
+        }
+
         ConfigurableApplicationContext ctx = null;
         try {
             final NamespaceUtil nsUtil = new NamespaceUtil();
+            final long start = System.currentTimeMillis();
             ctx = new ClassPathXmlApplicationContext("classpath:/spring/master.xml");
             ctx.getBeanFactory().autowireBeanProperties(nsUtil, AutowireCapableBeanFactory.AUTOWIRE_BY_TYPE, false);
+            nsUtil.LOGGER.info("Started repository in " + (System.currentTimeMillis() - start) + "ms");
 
             getPropertyOrExit("fcrepo.modeshape.configuration", "/repo.json");
             
@@ -125,206 +218,600 @@ public class NamespaceUtil {
         return System.getProperty(propName);
     }
 
+    // Whether the command runs resource queries, and so should warn when no nodetype index is defined
+    private static boolean runsResourceQueries() {
+        final String command = System.getProperty("command", "");
+        // An index scanned in this run answers every lookup, one loaded from disk falls back to queries
+        final String indexFile = System.getProperty("index.file");
+        if ("index".equalsIgnoreCase(System.getProperty("scan.mode"))
+                && (indexFile == null || ! new File(indexFile).isFile())) {
+            return false;
+        }
+        if ("list".equalsIgnoreCase(command)) {
+            return ! Boolean.parseBoolean(System.getProperty("skip.resources"));
+        }
+        if ("clean".equalsIgnoreCase(command)) {
+            return ! "namespace".equalsIgnoreCase(System.getProperty("clean.mode"));
+        }
+        if ("verify".equalsIgnoreCase(command)) {
+            return ! "namespace".equalsIgnoreCase(System.getProperty("clean.mode",
+                    System.getProperty("filepath", "").contains("-namespace-completed") ? "namespace" : "nodetype"));
+        }
+        return "add-resources".equalsIgnoreCase(command) || "provision-index".equalsIgnoreCase(command);
+    }
+
+    // Whether the command needs the query indexes running: any command that queries or writes content does, or
+    // the indexes would go stale. Only plan and a list without resources read without querying.
+    private static boolean needsQueryIndexes() {
+        final String command = System.getProperty("command", "");
+        if ("plan".equalsIgnoreCase(command)) {
+            return false;
+        }
+        if ("list".equalsIgnoreCase(command)) {
+            return runsResourceQueries();
+        }
+        return true;
+    }
+
     /**
      * Run the namespace change utility
      **/
     public void run() throws RepositoryException, IOException {
+        run(sessionFactory.getInternalSession(), sessionFactory::getInternalSession);
+    }
+
+    /**
+     * Run the namespace change utility on the given session, any worker sessions are taken from the supplier
+     **/
+    public void run(final Session mainSession, final Supplier<Session> sessionSupplier)
+            throws RepositoryException, IOException {
         LOGGER.info("Starting namespace utility");
         startTime = new SimpleDateFormat("yyyyMMdd_HHmmss").format(Calendar.getInstance().getTime());
 
-        session = sessionFactory.getInternalSession();
+        init(mainSession, sessionSupplier);
+
+        String command = getPropertyOrExit("command", "list|check");
+
+        if (System.getProperty("filepath") != null) {
+            metrics.startSnapshots(System.getProperty("filepath") + ".metrics." + command + ".csv",
+                    Long.getLong("metrics.interval.seconds", 60L));
+        }
+
+        if ("index".equalsIgnoreCase(System.getProperty("scan.mode"))) {
+            loadOrBuildNodeTypeIndex(System.getProperty("index.file"));
+        }
+
+        if (runsResourceQueries() && ! "provision-index".equalsIgnoreCase(command)
+                && ! IndexProvisioner.hasNodeTypeIndex(session)) {
+            LOGGER.warn("No nodetype index defined, every resource query scans the repository. "
+                    + "See -Dcommand=provision-index");
+        }
+
+        try {
+            if (System.getProperty("shard.dir") != null) {
+                runSharded(command);
+            } else if ("list".equalsIgnoreCase(command)) {
+                String filepath = getPropertyOrExit("filepath", "/path/to/output/file");
+                boolean skipResources = Boolean.parseBoolean(System.getProperty("skip.resources"));
+                list(filepath, skipResources);
+            } else if ("add-resources".equalsIgnoreCase(command)) {
+                String filepath = getPropertyOrExit("filepath", "/path/to/input/file");
+                add_resources(filepath);
+            } else if ("plan".equalsIgnoreCase(command)) {
+                String filepath = getPropertyOrExit("filepath", "/path/to/input/file");
+                plan(filepath);
+            } else if ("generate".equalsIgnoreCase(command)) {
+                generate();
+            } else if ("provision-index".equalsIgnoreCase(command)) {
+                provisionIndex();
+            } else if ("verify".equalsIgnoreCase(command)) {
+                verify(getPropertyOrExit("filepath", "/path/to/completed/file"));
+            } else if ("watch".equalsIgnoreCase(command)) {
+                watch(getPropertyOrExit("filepath", "/path/to/output/file"));
+            } else if ("remap".equalsIgnoreCase(command)) {
+                remap(getPropertyOrExit("filepath", "/path/to/mapping/file"));
+            } else if ("clean".equalsIgnoreCase(command)) {
+                String filepath = getPropertyOrExit("filepath", "/path/to/input/file");
+                String mode = getPropertyOrExit("clean.mode", "nodetype|namespace");
+                clean(filepath, mode, System.getProperty("skip.until.prefix"));
+            } else {
+                System.err.println("Unknown command: " + command);
+                System.exit(2);
+            }
+        } finally {
+            close();
+        }
+
+
+        LOGGER.info("Ran " + existenceProbe.getQueryCount() + " resource queries");
+        LOGGER.info("Stopping namespace utility");
+    }
+
+    /**
+     * Bind a utility to a session without running a command, e.g. to benchmark its parts. Close it
+     * to stop its workers and query watchdog.
+     **/
+    public static NamespaceUtil open(final Session session, final Supplier<Session> sessionSupplier)
+            throws RepositoryException {
+        final NamespaceUtil util = new NamespaceUtil();
+        util.init(session, sessionSupplier);
+        return util;
+    }
+
+    /**
+     * Stop the workers, query watchdog and metrics started when the utility was bound to a session
+     **/
+    @Override
+    public void close() {
+        workerPool.close();
+        queryWatchdog.close();
+        metrics.close();
+    }
+
+    /**
+     * Bind the utility to a session, any worker sessions are taken from the supplier
+     **/
+    void init(final Session session, final Supplier<Session> sessionSupplier) throws RepositoryException {
+        bindSession(session);
+        queryWatchdog = QueryWatchdog.fromProperties();
+        existenceProbe = new ExistenceProbe(session, metrics.query, queryWatchdog);
+        sessionRecycler = SessionRecycler.fromProperties(sessionSupplier, metrics);
+        workerPool = new WorkerPool(existenceProbe, Integer.getInteger("workers", 1), sessionSupplier,
+                sessionRecycler.isEnabled() ? sessionRecycler : null);
+    }
+
+    private void bindSession(final Session session) throws RepositoryException {
+        this.session = session;
         workspace = session.getWorkspace();
         namespaceRegistry = workspace.getNamespaceRegistry();
         queryManager = workspace.getQueryManager();
         nodeTypeManager = (NodeTypeManager) session.getWorkspace().getNodeTypeManager();
+    }
 
-        String command = getPropertyOrExit("command", "list|check");
+    // Replace the main session between rows once it is due. Everything else about the run, the probe cache,
+    // registry snapshot, journals and outputs, carries over to the new session.
+    private void recycleSessionIfDue() throws RepositoryException {
+        if (! sessionRecycler.isEnabled()) {
+            return;
+        }
+        final long operations = existenceProbe.getSessionQueryCount() + sessionWrites;
+        if (! sessionRecycler.isDue(operations) || session.hasPendingChanges()) {
+            return;
+        }
+        bindSession(sessionRecycler.recycle(session, "main", operations));
+        existenceProbe = existenceProbe.withSession(session);
+        workerPool.setMainProbe(existenceProbe);
+        sessionWrites = 0;
+    }
 
-        if ("list".equalsIgnoreCase(command)) {
-            String filepath = getPropertyOrExit("filepath", "/path/to/output/file");
-            boolean skipResources = Boolean.parseBoolean(System.getProperty("skip.resources"));
-            list(filepath, skipResources);
-        } else if ("add-resources".equalsIgnoreCase(command)) {
-            String filepath = getPropertyOrExit("filepath", "/path/to/input/file");
-            add_resources(filepath);
-        } else if ("clean".equalsIgnoreCase(command)) {
-            String filepath = getPropertyOrExit("filepath", "/path/to/input/file");
-            String mode = getPropertyOrExit("clean.mode", "nodetype|namespace");
-            clean(filepath, mode, System.getProperty("skip.until.prefix"));
-        } else {
-            System.err.println("Unknown command: " + command);
-            System.exit(2);
+    private static boolean isSpuriousNodeType(final String nodeTypeName) {
+        return nodeTypeName.startsWith("ns") && nodeTypeName.endsWith(":None");
+    }
+
+    // Reuse a persisted nodetype index if there is one, otherwise walk the workspace once and persist it
+    private void loadOrBuildNodeTypeIndex(final String indexFilePath) throws RepositoryException, IOException {
+        if (indexFilePath != null && new File(indexFilePath).isFile()) {
+            nodeTypeIndex = NodeTypeIndex.load(indexFilePath);
+            nodeTypeIndexFromDisk = true;
+            return;
         }
-        
-        LOGGER.info("Stopping namespace utility");
+        nodeTypeIndex = NodeTypeIndex.scan(session, NamespaceUtil::isSpuriousNodeType);
+        if (indexFilePath != null) {
+            nodeTypeIndex.save(indexFilePath);
+        }
+    }
+
+    // Find the resources using a nodetype, from the nodetype index when one was built, otherwise by JCR probe.
+    // An index loaded from disk misses resources added since it was saved, so a nodetype it has no resources
+    // for is checked by probe as well, before clean takes it as unused. Called from worker threads, so only the
+    // given probe and its session may be used.
+    private List<String> findResources(final ExistenceProbe probe, final String nodeType, final boolean firstOnly)
+            throws RepositoryException {
+        if (nodeTypeIndex != null) {
+            final List<String> paths = nodeTypeIndexFromDisk
+                    ? nodeTypeIndex.getVerifiedPaths(probe.getSession(), nodeType) : nodeTypeIndex.getPaths(nodeType);
+            if (! paths.isEmpty() || ! nodeTypeIndexFromDisk) {
+                return firstOnly && paths.size() > 1 ? paths.subList(0, 1) : paths;
+            }
+        }
+
+        if (firstOnly) {
+            final String path = probe.firstPath(nodeType);
+            return path == null ? Collections.<String>emptyList() : Collections.singletonList(path);
+        }
+        return probe.allPaths(nodeType);
     }
 
-    // get the set of "nsXXX" prefixes
-    private Map<String, List<String>> getNSXXXPrefixesMap() {
-        return getNamespaces(session).keySet().stream().filter((k) -> k.startsWith("ns")).collect(Collectors.toMap(k -> k, k -> new ArrayList<>()));
+    // Find the resources of a row's nodetype, quarantining the row instead when the query times out or fails
+    private <I> List<String> findResources(final QueryQuarantine<I> quarantine, final ExistenceProbe probe,
+            final I input, final String[] data, final boolean firstOnly) {
+        final long start = System.currentTimeMillis();
+        try {
+            return findResources(probe, data[2], firstOnly);
+        } catch (RepositoryException e) {
+            quarantine.add(input, data, System.currentTimeMillis() - start, e);
+            return null;
+        }
+    }
+
+    // Retry the quarantined rows one at a time on the main session with the longer -Dquery.retry.timeout.millis
+    // budget. Each result goes to the run's sink as the first attempt's would have, null when the query failed again.
+    private <I> void retryQuarantined(final QueryQuarantine<I> quarantine, final boolean firstOnly,
+            final WorkerPool.Sink<I, List<String>> sink) throws RepositoryException, IOException {
+        final List<QueryQuarantine.Entry<I>> entries = quarantine.startRetry();
+        if (entries.isEmpty()) {
+            return;
+        }
+        final long retryMillis = Long.getLong("query.retry.timeout.millis", 600000L);
+        LOGGER.info("Retrying " + entries.size() + " quarantined nodetype queries with a " + retryMillis
+                + "ms deadline");
+        queryWatchdog.setOverrideMillis(retryMillis);
+        try {
+            for (final QueryQuarantine.Entry<I> entry : entries) {
+                sink.accept(entry.input,
+                        findResources(quarantine, existenceProbe, entry.input, entry.data, firstOnly));
+            }
+        } finally {
+            queryWatchdog.setOverrideMillis(0);
+        }
+        LOGGER.info((entries.size() - quarantine.getFailedRetries()) + " of " + entries.size()
+                + " quarantined nodetype queries succeeded on retry");
+    }
+
+    // Quarantine CSV of a run over the given CSV or work file
+    private String quarantinePath(final String filepath, final String label) {
+        final String base = WorkFile.isWorkFile(filepath) ? filepath.replace(WorkFile.EXTENSION, "") : filepath;
+        return base.replaceFirst("(\\.csv)?$", "-" + startTime + "-" + label + "-quarantine.csv");
+    }
+
+    // Take the registry snapshot on first use, every command after that reads and updates it instead of the registry
+    private RegistrySnapshot registrySnapshot() throws RepositoryException {
+        if (registrySnapshot == null) {
+            registrySnapshot = takeRegistrySnapshot();
+        }
+        return registrySnapshot;
+    }
+
+    /**
+     * Take a fresh snapshot of the namespace and nodetype registries
+     **/
+    public RegistrySnapshot takeRegistrySnapshot() throws RepositoryException {
+        return RegistrySnapshot.take(namespaceRegistry, nodeTypeManager, NamespaceUtil::isSpuriousNodeType);
     }
 
-    // get the set of "nsXXX" prefixes
-    private Map<String, List<String>> getSpuriousNodeTypes() throws RepositoryException {
-        Map<String, List<String>> namespacesWithNodeType = getNSXXXPrefixesMap();
-        NodeTypeManager nodeTypeManager = (NodeTypeManager) workspace.getNodeTypeManager();
-        NodeTypeIterator nodeTypes = nodeTypeManager.getAllNodeTypes();
+    // Work through shards claimed from the shared shard directory until none are left. Only the read-only
+    // commands are sharded, registry changes are left to the single elected writer.
+    private void runSharded(final String command) throws RepositoryException, IOException {
+        final ShardDirectory shards = ShardDirectory.fromProperties();
+        if ("clean".equalsIgnoreCase(command)) {
+            try (ShardDirectory.Claim writer = shards.electWriter()) {
+                if (writer == null) {
+                    LOGGER.error("Another process is the elected writer, not cleaning");
+                    return;
+                }
+                clean(getPropertyOrExit("filepath", "/path/to/input/file"),
+                        getPropertyOrExit("clean.mode", "nodetype|namespace"), System.getProperty("skip.until.prefix"));
+            }
+            return;
+        }
 
-        while (nodeTypes.hasNext()) {
-            String nodeTypeName = nodeTypes.nextNodeType().getName();
-            String nodeTypePrefix = nodeTypeName.split(":")[0];
-            if (nodeTypeName.startsWith("ns") && nodeTypeName.endsWith(":None")) {
-                if(namespacesWithNodeType.get(nodeTypePrefix) != null) {
-                    namespacesWithNodeType.get(nodeTypePrefix).add(nodeTypeName);
+        final boolean listing = "list".equalsIgnoreCase(command);
+        if (! listing && ! "add-resources".equalsIgnoreCase(command)) {
+            System.err.println("Command " + command + " does not run sharded");
+            System.exit(2);
+        }
+        final String name = listing ? ShardDirectory.LIST : ShardDirectory.RESOURCES;
+        final int shardCount = listing ? Integer.parseInt(getPropertyOrExit("shard.count", "8"))
+                : shards.countShards(name);
+        final boolean skipResources = Boolean.parseBoolean(System.getProperty("skip.resources"));
+
+        int claimed = 0;
+        ShardDirectory.Claim claim;
+        while ((claim = shards.claim(name, shardCount)) != null) {
+            try {
+                final String shardPath = shards.getShardPath(name, claim.getShard());
+                if (listing) {
+                    list(shardPath, skipResources, claim.getShard(), shardCount);
                 } else {
-                    LOGGER.info("No matching namespace for NodeType: " + nodeTypeName);
-                    List<String> nodeTypeList = new ArrayList<String>();
-                    nodeTypeList.add(nodeTypeName);
-                    namespacesWithNodeType.put(nodeTypePrefix, nodeTypeList);
+                    add_resources(shardPath);
                 }
+                claim.complete();
+                claimed++;
+            } finally {
+                claim.close();
             }
         }
-        return namespacesWithNodeType;
+        LOGGER.info("Processed " + claimed + " of " + shardCount + " " + name + " shards, no more left to claim");
     }
 
     private void list(String filepath, boolean skipResources) throws RepositoryException, IOException {
-        try {
-            CSVWriter writer = new CSVWriter(new FileWriter(filepath));
+        list(filepath, skipResources, 0, 1);
+    }
+
+    // List the shard'th of shardCount contiguous ranges of the spurious prefixes, in snapshot id order. The snapshot
+    // is enumerated lazily and filtered on the fly, resources are resolved on the workers within their bounded
+    // window, and rows are written and flushed as soon as they are resolved. -Dprefix.range and -Dlimit cut the
+    // run short.
+    private void list(final String filepath, final boolean skipResources, final int shard, final int shardCount)
+            throws RepositoryException, IOException {
+        try (CSVWriter writer = new CSVWriter(new FileWriter(filepath));
+                QueryQuarantine<String[]> quarantine = new QueryQuarantine<String[]>(
+                        quarantinePath(filepath, "list"))) {
             // Write data to the CSV file
             String[] data = {"namespace", "namespaceUri", "nodeType", "resource"};
             writer.writeNext(data);
+            writer.flush();
+
+            final RegistrySnapshot registry = registrySnapshot();
+            final int[] range = prefixRange();
+            final long limit = Long.getLong("limit", 0L) > 0 ? Long.getLong("limit") : Long.MAX_VALUE;
+
+            // Sharding needs the number of listed prefixes up front, an unsharded run starts writing straight away
+            long first = 0;
+            long end = Long.MAX_VALUE;
+            if (shardCount > 1) {
+                long spuriousCount = 0;
+                for (int id = registry.nextRegistered(0); id >= 0; id = registry.nextRegistered(id + 1)) {
+                    if (isListed(registry, id) && inRange(registry, id, range)) {
+                        spuriousCount++;
+                    }
+                }
+                first = spuriousCount * shard / shardCount;
+                end = spuriousCount * (shard + 1) / shardCount;
+            }
+            metrics.setTotalRows(Math.min(Math.min(end - first, limit), registry.getNamespaceCount()));
 
-            Map<String, List<String>> namespacesWithNodeType = getSpuriousNodeTypes();
-            data[3] = "";
+            final int flushRows = Math.max(1, Integer.getInteger("list.flush.rows", 100));
+            final long[] unflushed = {0};
 
-            for (final String namespacePrefix: namespacesWithNodeType.keySet()) {
-                String namespaceUri = namespaceRegistry.getURI(namespacePrefix);
+            // Resources are resolved on the workers, rows are written here in submission order. A quarantined
+            // row is written after its retry, without a resource when that fails too.
+            final WorkerPool.Sink<String[], List<String>> sink = (row, paths) -> {
+                if (paths == null && ! quarantine.isRetrying()) {
+                    return;
+                }
+                metrics.completed.incrementAndGet();
+                if (paths == null || paths.isEmpty()) {
+                    writer.writeNext(row);
+                    unflushed[0]++;
+                } else {
+                    registrySnapshot.setHasResources(row[0], true);
+                    for (final String path : paths) {
+                        LOGGER.info("  " + path);
+                        row[3] = path;
+                        writer.writeNext(row);
+                        unflushed[0]++;
+                    }
+                }
+                if (unflushed[0] >= flushRows) {
+                    writer.flush();
+                    unflushed[0] = 0;
+                }
+            };
+            final WorkerPool.OrderedRun<String[], List<String>> resolver = workerPool.start(
+                (probe, row) -> {
+                    if (skipResources || "".equals(row[2])) {
+                        return Collections.<String>emptyList();
+                    }
+                    LOGGER.info("Processing Prefix " + row[0]);
+                    return findResources(quarantine, probe, row, row, false);
+                }, sink);
 
+            long ordinal = 0;
+            long listed = 0;
+            for (int id = registry.nextRegistered(0); id >= 0 && listed < limit; id = registry.nextRegistered(id + 1)) {
                 // Omit ns prefixed namespaces that is not spurious
-                if (! namespaceUri.contains("tx:")) {
+                if (! isListed(registry, id) || ! inRange(registry, id, range)) {
+                    continue;
+                }
+                if (ordinal < first || ordinal >= end) {
+                    ordinal++;
                     continue;
                 }
-                data[0] = namespacePrefix;
-                data[1] = namespaceUri;
-                List<String> nodeTypesList = namespacesWithNodeType.get(namespacePrefix);
-                if (nodeTypesList == null || nodeTypesList.isEmpty()) {
-                    data[2] = "";
-                    writer.writeNext(data);
+                ordinal++;
+                listed++;
+                final String namespacePrefix = registry.getPrefix(id);
+                final String namespaceUri = registry.getUri(id);
+                final List<String> nodeTypesList = registry.getNodeTypes(id);
+                if (nodeTypesList.isEmpty()) {
+                    resolver.submit(new String[] {namespacePrefix, namespaceUri, "", ""});
                 } else {
                     for (final String nodeType: nodeTypesList) {
-                        
-                        
-                        data[2] = nodeType;
-
-                        if (skipResources) {
-                            writer.writeNext(data);
-                            continue;
-                        }
-
-                        LOGGER.info("Processing Prefix " + namespacePrefix);
-                        final Query query = queryManager.createQuery(
-                                "SELECT * FROM [" + nodeType + "]",
-                                "JCR-SQL2"
-                        );
-                        try {
-                            final QueryResult result = query.execute();
-                            final RowIterator rowIterator = result.getRows();
-                            if (! rowIterator.hasNext()) {
-                                data[3] = "";
-                                writer.writeNext(data);
-                            } else {
-                                while (rowIterator.hasNext()) {
-                                    final Row row = rowIterator.nextRow();
-                                    final String path = row.getPath();
-                                    LOGGER.info("  " + path);
-                                    data[3] = path;
-                                    writer.writeNext(data);
-                                }
-                            }
-                        } catch (InvalidQueryException ignored) {
-                        }
+                        resolver.submit(new String[] {namespacePrefix, namespaceUri, nodeType, ""});
                     }
                 }
+                recycleSessionIfDue();
             }
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            resolver.finish();
+            retryQuarantined(quarantine, false, sink);
+            if (listed == limit) {
+                LOGGER.info("Stopped after the limit of " + limit + " namespaces");
+            }
+            LOGGER.info("Found resources for " + registry.getHasResourcesCount() + " namespaces");
         }
     }
 
-    private void add_resources(String filepath) {
-        String tempFilePath = filepath + ".add-resource-working-file";
-        String statusFilePath = filepath + ".status.add-resources";
-        String skipUntilPrefix = readLastProcessingPrefix(statusFilePath);
-        try {
-            String[] data = {"namespace", "namespaceUri", "nodeType", "resource"};
+    // Inclusive prefix number range from -Dprefix.range=nsFROM-nsTO, null when not set
+    private static int[] prefixRange() {
+        final String range = System.getProperty("prefix.range");
+        if (range == null) {
+            return null;
+        }
+        final String[] bounds = range.split("-", 2);
+        final int from = RegistrySnapshot.parseNumericId(bounds[0].trim());
+        final int to = bounds.length == 2 ? RegistrySnapshot.parseNumericId(bounds[1].trim()) : -1;
+        if (from < 0 || to < from) {
+            System.err.println("java -Dprefix.range=ns100-ns5000 ...");
+            System.exit(2);
+        }
+        return new int[] {from, to};
+    }
 
-            if (!(new File(tempFilePath).isFile())) {
-                writeCSVLineToFile(tempFilePath, data, false);
+    // The range bounds prefix numbers, not snapshot ids: ids past the numeric ones are fallback slots holding
+    // non-numeric and large nsNNN prefixes alike
+    private static boolean inRange(final RegistrySnapshot registry, final int id, final int[] range) {
+        if (range == null) {
+            return true;
+        }
+        final int number = RegistrySnapshot.parseNumericId(registry.getPrefix(id));
+        return number >= range[0] && number <= range[1];
+    }
+
+    private static boolean isListed(final RegistrySnapshot registry, final int id) {
+        return registry.getPrefix(id).startsWith("ns") && registry.getUri(id).contains("tx:");
+    }
+
+    private void add_resources(String filepath) throws RepositoryException, IOException {
+        if (WorkFile.isWorkFile(filepath)) {
+            addResourcesInPlace(filepath);
+            return;
+        }
+
+        String tempFilePath = filepath + ".add-resource-working-file";
+        String journalFilePath = filepath + ".journal.add-resources";
+        String[] header = {"namespace", "namespaceUri", "nodeType", "resource"};
+
+        try (RunJournal journal = RunJournal.open(journalFilePath);
+                QueryQuarantine<CsvRow> quarantine = new QueryQuarantine<CsvRow>(
+                        quarantinePath(filepath, "add-resources"))) {
+            // A complete journal is left behind by a run that crashed before or after replacing the input. The
+            // working file must not be reopened: once moved away it would be recreated zero-filled to its length.
+            if (journal.isComplete()) {
+                journal.close();
+                if (new File(tempFilePath).isFile()) {
+                    LOGGER.info("A previous run completed without replacing " + filepath + ", replacing it now.");
+                    Files.move(Paths.get(tempFilePath), Paths.get(filepath), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    LOGGER.info("A previous run already replaced " + filepath + " with its resources, stopping.");
+                }
+                journal.delete();
+                return;
             }
 
+            // The working file carries over between runs, cut back to the last journaled row
+            final RunJournal.Output output = journal.output(tempFilePath, true, header);
+            output.onWrite(data -> metrics.completed.incrementAndGet());
+            metrics.setTotalRows(RunMetrics.countRows(filepath) - journal.getLastSequence()
+                    + journal.getDeferred().size());
+
+            // Resources are looked up on the workers, rows are written here in input order. A quarantined row
+            // is journaled as deferred and written at its retry, as-is when that fails too, so the row stays in
+            // the cleanup list. A restart before the retry retries just the deferred rows.
+            final WorkerPool.Sink<CsvRow, List<String>> sink = (row, paths) -> {
+                final String[] data = row.data;
+                if (data[3] != null && ! "".equals(data[3])) {
+                    output.write(data);
+                    LOGGER.info("  Resource exists - writing as-is.");
+                } else if (paths == null) {
+                    if (! quarantine.isRetrying()) {
+                        LOGGER.info("  Query quarantined - retrying at the end of the run.");
+                        journal.deferred(row.sequence);
+                        return;
+                    }
+                    LOGGER.info("  Query failed again - writing as-is.");
+                    output.write(data);
+                } else if (! paths.isEmpty()) {
+                    data[3] = paths.get(0);
+                    output.write(data);
+                    LOGGER.info("  Adding resource from jcr query.");
+                } else {
+                    LOGGER.info("  No resource found - writing as-is.");
+                    output.write(data);
+                }
+                journal.processed(row.sequence);
+            };
+            final WorkerPool.OrderedRun<CsvRow, List<String>> resolver = workerPool.start(
+                (probe, row) -> {
+                    if (row.data[3] != null && ! "".equals(row.data[3])) {
+                        return Collections.<String>emptyList();
+                    }
+                    return findResources(quarantine, probe, row, row.data, true);
+                }, sink);
+
             // Read namespaces from the input file
             try (CSVReader reader = new CSVReader(new FileReader(filepath))) {
-                // Skip header row
+                // Skip header row and the rows journaled by a previous run
                 reader.skip(1);
-
-                boolean skipComplete = false;
-
                 Iterator<String[]> csvRowIterator = reader.iterator();
+                long sequence = skipJournaled(journal, quarantine, csvRowIterator);
                 while (csvRowIterator.hasNext()) {
-                    data = csvRowIterator.next();
-
-                    if (skipUntilPrefix != null && ! skipComplete) {
-                        if (skipUntilPrefix.equals(data[0])) {
-                            LOGGER.info("Skip to target reached.");
-                            skipComplete = true;
-                        } else {
-                            LOGGER.info("Skipping prefix: " + data[0]);
-                            continue;
-                        }
-                    }
-
-                    // Write the current processing prefix to a file for resumability
-                    writeCurrentProcessingPrefix(statusFilePath, data[0]);
-
+                    String[] data = csvRowIterator.next();
                     LOGGER.info("Processing prefix: " + data[0] + ": ");
+                    resolver.submit(new CsvRow(++sequence, data));
+                    recycleSessionIfDue();
+                }
+                resolver.finish();
+                retryQuarantined(quarantine, true, sink);
+            }
+            journal.complete();
 
-                    if (data[3] != null && ! "".equals(data[3])) {
-                        writeCSVLineToFile(tempFilePath, data, true);
-                        LOGGER.info("  Resource exists - writing as-is.");
-                        continue;
-                    }
+            // Replace the input file with temp file, the journal's row numbers no longer apply
+            journal.close();
+            Files.move(Paths.get(tempFilePath), Paths.get(filepath), StandardCopyOption.REPLACE_EXISTING);
+            journal.delete();
+        }
+    }
 
+    // Work file variant of add_resources, resources and outcomes are recorded in place. A row already
+    // flagged by a previous run is not looked up again, so no journal is needed.
+    private void addResourcesInPlace(final String filepath) throws RepositoryException, IOException {
+        try (WorkFile workFile = WorkFile.open(filepath);
+                QueryQuarantine<CsvRow> quarantine = new QueryQuarantine<CsvRow>(
+                        quarantinePath(filepath, "add-resources"))) {
+            final long checkpointRows = Integer.getInteger("journal.commit.rows", 1000);
+            final long[] processed = {0};
+            // A quarantined row stays unflagged until its retry, so an interrupted run looks it up again, and is
+            // kept as-is when that fails too
+            final WorkerPool.Sink<CsvRow, List<String>> sink = (row, paths) -> {
+                final long index = row.sequence - 1;
+                if (! "".equals(row.data[3])) {
+                    LOGGER.info("  Resource exists - keeping as-is.");
+                } else if (paths == null) {
+                    if (! quarantine.isRetrying()) {
+                        LOGGER.info("  Query quarantined - retrying at the end of the run.");
+                        return;
+                    }
+                    LOGGER.info("  Query failed again - keeping as-is.");
+                } else if (! paths.isEmpty()) {
+                    workFile.setResource(index, paths.get(0));
+                    LOGGER.info("  Adding resource from jcr query.");
+                } else {
+                    LOGGER.info("  No resource found - keeping as-is.");
+                }
+                workFile.setFlags(index, WorkFile.RESOURCES_ADDED);
+                metrics.completed.incrementAndGet();
+                if (++processed[0] % checkpointRows == 0) {
+                    workFile.force();
+                }
+            };
+            final WorkerPool.OrderedRun<CsvRow, List<String>> resolver = workerPool.start(
+                (probe, row) -> {
+                    if (! "".equals(row.data[3])) {
+                        return Collections.<String>emptyList();
+                    }
+                    return findResources(quarantine, probe, row, row.data, true);
+                }, sink);
 
-                    final Query query = queryManager.createQuery(
-                        "SELECT * FROM [" + data[2] + "]",
-                        "JCR-SQL2"
-                    );
-                    try {
-                        final QueryResult result = query.execute();
-                        final RowIterator rowIterator = result.getRows();
+            long pending = 0;
+            for (long index = 0; index < workFile.getRowCount(); index++) {
+                if ((workFile.getFlags(index) & WorkFile.RESOURCES_ADDED) == 0) {
+                    pending++;
+                }
+            }
+            LOGGER.info(pending + " of " + workFile.getRowCount() + " rows left to process.");
+            metrics.setTotalRows(pending);
 
-                        if (rowIterator.hasNext()) {
-                            data[3] = rowIterator.nextRow().getPath();
-                            writeCSVLineToFile(tempFilePath, data, true);
-                            LOGGER.info("  Adding resource from jcr query.");
-                        } else {
-                            LOGGER.info("  No resource found - writing as-is.");
-                            writeCSVLineToFile(tempFilePath, data, true);
-                        }
-                    } catch (InvalidQueryException ignored) {
-                    }
-                    
+            for (long index = 0; index < workFile.getRowCount(); index++) {
+                if ((workFile.getFlags(index) & WorkFile.RESOURCES_ADDED) != 0) {
+                    continue;
                 }
+                final String[] data = workFile.getRow(index);
+                LOGGER.info("Processing prefix: " + data[0] + ": ");
+                resolver.submit(new CsvRow(index + 1, data));
+                recycleSessionIfDue();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        // Replace the input file with temp file
-        try {
-            Files.move(Paths.get(tempFilePath), Paths.get(filepath), StandardCopyOption.REPLACE_EXISTING);
-        } catch (Exception e) {
-            e.printStackTrace();
+            resolver.finish();
+            retryQuarantined(quarantine, true, sink);
         }
     }
 
@@ -338,169 +825,305 @@ public class NamespaceUtil {
             LOGGER.warn("Running in DRY RUN mode -- will NOT unregister nodetype/namespaces.");
         }
 
-        String statusFilePath = filepath + ".status";
+        String journalFilePath = filepath + ".journal";
+        // Outputs of a work file run are CSVs named as if the input was the CSV it came from
+        final String outputBase = WorkFile.isWorkFile(filepath) ? filepath.replace(WorkFile.EXTENSION, ".csv")
+                : filepath;
         String completedFilePath;
         String rejectedFilePath;
         String skippedFilePath;
+        String quarantineFilePath;
 
         if ("namespace".equalsIgnoreCase(type)) {
             if(hasSpuriousNodeTypeExists()) {
                 LOGGER.error("Clean up splurious nodetypes before attempting namespace cleanup.");
                 return;
             }
-            buildNamespaceUriRelationships();
-            statusFilePath += ".namespace" + dryRunStr;
-            completedFilePath = filepath.replace(".csv", "-" + startTime + "-namespace-completed.csv" + dryRunStr);
-            rejectedFilePath = filepath.replace(".csv", "-" + startTime + "-namespace-rejected.csv" + dryRunStr);
-            skippedFilePath = filepath.replace(".csv", "-" + startTime + "-namespace-skipped.csv" + dryRunStr);
+            journalFilePath += ".namespace" + dryRunStr;
+            completedFilePath = outputBase.replace(".csv", "-" + startTime + "-namespace-completed.csv" + dryRunStr);
+            rejectedFilePath = outputBase.replace(".csv", "-" + startTime + "-namespace-rejected.csv" + dryRunStr);
+            skippedFilePath = outputBase.replace(".csv", "-" + startTime + "-namespace-skipped.csv" + dryRunStr);
+            quarantineFilePath = outputBase.replace(".csv", "-" + startTime + "-namespace-quarantine.csv" + dryRunStr);
         } else {
-            statusFilePath += ".nodetype" + dryRunStr;
-            completedFilePath = filepath.replace(".csv", "-" + startTime + "-nodetype-completed.csv" + dryRunStr);
-            rejectedFilePath = filepath.replace(".csv", "-" + startTime + "-nodetype-rejected.csv" + dryRunStr);
-            skippedFilePath = filepath.replace(".csv", "-" + startTime + "-nodetype-skipped.csv" + dryRunStr);
+            journalFilePath += ".nodetype" + dryRunStr;
+            completedFilePath = outputBase.replace(".csv", "-" + startTime + "-nodetype-completed.csv" + dryRunStr);
+            rejectedFilePath = outputBase.replace(".csv", "-" + startTime + "-nodetype-rejected.csv" + dryRunStr);
+            skippedFilePath = outputBase.replace(".csv", "-" + startTime + "-nodetype-skipped.csv" + dryRunStr);
+            quarantineFilePath = outputBase.replace(".csv", "-" + startTime + "-nodetype-quarantine.csv" + dryRunStr);
 
         }
 
-        if (skipUntilPrefix == null) {
-            skipUntilPrefix = readLastProcessingPrefix(statusFilePath);
-        }
-
-        String[] data = {"namespace", "namespaceUri", "nodeType", "resource"};
-        
-        writeCSVLineToFile(completedFilePath, data, false);
-        writeCSVLineToFile(rejectedFilePath, data, false);
-        writeCSVLineToFile(skippedFilePath, data, false);
+        String[] header = {"namespace", "namespaceUri", "nodeType", "resource"};
 
         boolean skipComplete = false;
-        
-        // Read namespaces from the input file
-        try (CSVReader reader = new CSVReader(new FileReader(filepath))) {
-            // Skip header row
-            reader.skip(1);
 
-            Iterator<String[]> csvRowIterator = reader.iterator();
-            while (csvRowIterator.hasNext()) {
-                data = csvRowIterator.next();
-                LOGGER.info("Processing prefix: " + data[0] + ": ");
-                
-                if (skipUntilPrefix != null && ! skipComplete) {
-                    if (skipUntilPrefix.equals(data[0])) {
-                        LOGGER.info("Skip to target reached.");
-                        skipComplete = true;
-                    } else {
-                        LOGGER.info("  Skipping prefix: " + data[0]);
-                        writeCSVLineToFile(skippedFilePath, data, true);
-                        continue;
+        // Verified-empty nodetypes waiting to be unregistered together
+        final int batchSize = Math.max(1, Integer.getInteger("clean.batch.size", 1));
+        final List<CsvRow> pendingNodeTypes = new ArrayList<CsvRow>(batchSize);
+
+        try (RunJournal journal = RunJournal.open(journalFilePath);
+                WorkFile workFile = WorkFile.isWorkFile(filepath) ? WorkFile.open(filepath) : null;
+                QueryQuarantine<CsvRow> quarantine = new QueryQuarantine<CsvRow>(quarantineFilePath)) {
+            final RunJournal.Output completed = journal.output(completedFilePath, false, header);
+            final RunJournal.Output rejected = journal.output(rejectedFilePath, false, header);
+            final RunJournal.Output skipped = journal.output(skippedFilePath, false, header);
+            final int completedFlag = "namespace".equalsIgnoreCase(type) ? WorkFile.NAMESPACE_UNREGISTERED
+                    : WorkFile.NODETYPE_UNREGISTERED;
+            completed.onWrite(data -> {
+                metrics.completed.incrementAndGet();
+                markWorkFile(workFile, data, completedFlag);
+            });
+            rejected.onWrite(data -> {
+                metrics.rejected.incrementAndGet();
+                markWorkFile(workFile, data, WorkFile.REJECTED);
+            });
+            skipped.onWrite(data -> {
+                metrics.skipped.incrementAndGet();
+                markWorkFile(workFile, data, WorkFile.SKIPPED);
+            });
+            metrics.setTotalRows(RunMetrics.countRows(filepath) - journal.getLastSequence()
+                    + journal.getDeferred().size());
+
+            // Resource checks run on the workers, registry changes stay on this thread in input order.
+            // Rows waiting in a batch are journaled only once the batch is saved. A quarantined row is journaled
+            // as deferred until it is checked again at the end of the run, and is rejected when that fails too.
+            final WorkerPool.Sink<CsvRow, List<String>> resourceSink = (row, paths) -> {
+                final String[] data = row.data;
+                if (paths == null) {
+                    if (! quarantine.isRetrying()) {
+                        LOGGER.info("  Query quarantined - checking again at the end of the run.");
+                        journal.deferred(row.sequence);
+                        return;
                     }
-                }
-
-                // Write the current processing prefix to a file for resumability
-                writeCurrentProcessingPrefix(statusFilePath, data[0]);
-
-
-                if ("namespace".equalsIgnoreCase(type)) {
-                    if (! doesNamespaceExists(data[0])) {
-                        LOGGER.info("Namespace already unregistered.");
-                        writeCSVLineToFile(skippedFilePath, data, true);
-                        removeRelationships(data[1]);
-                        continue;
+                    LOGGER.info("Rejecting - resource query failed again");
+                    rejected.write(data);
+                    journal.processed(row.sequence);
+                } else if (! paths.isEmpty()) {
+                    LOGGER.info("Rejecting - has associated resources");
+                    if (data[3] == null || "".equals(data[3])) {
+                        data[3] = paths.get(0);
                     }
-                    if (hasChildNamespaceUris(data[1])) {
-                        LOGGER.info("Rejecting - has child namespace URIs");
-                        writeCSVLineToFile(rejectedFilePath, data, true);
-                    } else if (doesNodeTypeExists(data[2])) {
-                        LOGGER.info("  Cannot unregister namespace while corresponding nodeType still exists");
-                        writeCSVLineToFile(rejectedFilePath, data, true);
-                    } else {
-                        if (! dryRun) {
-                            try {
-                                namespaceRegistry.unregisterNamespace(data[0]);
-                            } catch (NamespaceException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                        removeRelationships(data[1]);
-                        writeCSVLineToFile(completedFilePath, data, true);
-                        LOGGER.info(" Unregistered namespace: " + data[0]);
+                    rejected.write(data);
+                    journal.processed(row.sequence);
+                } else {
+                    pendingNodeTypes.add(row);
+                    if (pendingNodeTypes.size() >= batchSize) {
+                        unregisterNodeTypes(pendingNodeTypes, dryRun, completed, rejected, journal);
+                        pendingNodeTypes.clear();
                     }
+                }
+            };
+            final WorkerPool.OrderedRun<CsvRow, List<String>> resourceCheck = workerPool.start(
+                (probe, row) -> findResources(quarantine, probe, row, row.data, true), resourceSink);
+
+            // Read namespaces from the input file
+            try (CSVReader reader = workFile == null ? new CSVReader(new FileReader(filepath)) : null) {
+                final Iterable<String[]> rows;
+                if (workFile == null) {
+                    // Skip header row
+                    reader.skip(1);
+                    rows = reader;
                 } else {
+                    rows = workFile.rows();
+                }
 
+                // Namespaces are unregistered in cleanup plan order, children before parents
+                final List<String[]> plannedRows = "namespace".equalsIgnoreCase(type) ? planCleanup(rows) : null;
 
-                    final Query query = queryManager.createQuery(
-                        "SELECT * FROM [" + data[2] + "]",
-                        "JCR-SQL2"
-                        );
-                        
-                    try {
-                        final QueryResult result = query.execute();
-                        final RowIterator rowIterator = result.getRows();
-
-                        if (rowIterator.hasNext()) {  
-                            LOGGER.info("Rejecting - has associated resources");
-                            if (data[3] == null || "".equals(data[3])) {
-                                data[3] = rowIterator.nextRow().getPath();
-                                writeCSVLineToFile(rejectedFilePath, data, true);
-                            } else {
-                                writeCSVLineToFile(rejectedFilePath, data, true);
-                            }
+                // Skip the rows journaled by a previous run
+                final Iterator<String[]> csvRowIterator = plannedRows == null ? rows.iterator()
+                        : plannedRows.iterator();
+                long sequence = skipJournaled(journal, quarantine, csvRowIterator);
+                while (csvRowIterator.hasNext()) {
+                    String[] data = csvRowIterator.next();
+                    sequence++;
+                    LOGGER.info("Processing prefix: " + data[0] + ": ");
+
+                    if (skipUntilPrefix != null && ! skipComplete) {
+                        if (skipUntilPrefix.equals(data[0])) {
+                            LOGGER.info("Skip to target reached.");
+                            skipComplete = true;
                         } else {
-                            if (! dryRun) {
-                                nodeTypeManager.unregisterNodeType(data[2]);
-                            }
-                            LOGGER.info(" Unregistered nodeType: " + data[2]);
-                            session.save();
-                            writeCSVLineToFile(completedFilePath, data, true);
+                            LOGGER.info("  Skipping prefix: " + data[0]);
+                            skipped.write(data);
+                            journal.processed(sequence);
+                            continue;
                         }
+                    }
 
-                    } catch (InvalidQueryException e) {
-                        e.printStackTrace();
+                    if ("namespace".equalsIgnoreCase(type)) {
+                        cleanNamespace(data, dryRun, completed, rejected, skipped);
+                        journal.processed(sequence);
+                    } else {
+                        resourceCheck.submit(new CsvRow(sequence, data));
                     }
+                    recycleSessionIfDue();
                 }
-                
+                resourceCheck.finish();
+                retryQuarantined(quarantine, true, resourceSink);
+                unregisterNodeTypes(pendingNodeTypes, dryRun, completed, rejected, journal);
+                pendingNodeTypes.clear();
+                journal.complete();
             }
-            writeCurrentProcessingPrefix(statusFilePath, "complete");
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private String readLastProcessingPrefix(String statusFilePath) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(statusFilePath))) {
-            LOGGER.info("Reading last processed prefix from status file.");
-            return reader.readLine();
-        } catch (IOException e) {
-            // status file doesn't exist, start from the beginning
-            return null;
+    // Skip the rows journaled by a previous run, holding back the ones it deferred for this run's retry.
+    // Returns the sequence number of the last row skipped.
+    private long skipJournaled(final RunJournal journal, final QueryQuarantine<CsvRow> quarantine,
+            final Iterator<String[]> rows) {
+        final long lastSequence = journal.getLastSequence();
+        if (lastSequence == 0) {
+            return 0;
+        }
+        LOGGER.info("Skipping " + lastSequence + " rows processed by a previous run, retrying "
+                + journal.getDeferred().size() + " rows it quarantined.");
+        long sequence = 0;
+        while (sequence < lastSequence && rows.hasNext()) {
+            final String[] data = rows.next();
+            if (journal.getDeferred().contains(++sequence)) {
+                quarantine.resume(new CsvRow(sequence, data), data);
+            }
         }
+        return sequence;
     }
 
-    private static void writeCSVLineToFile(String filepath, String[] data, boolean appendMode) {
-        try (CSVWriter writer = new CSVWriter(new FileWriter(filepath, appendMode))) {
-            writer.writeNext(data);
+    // Record a clean outcome on the work file rows of the prefix, when the input is a work file
+    private static void markWorkFile(final WorkFile workFile, final String[] data, final int flag) {
+        if (workFile == null) {
+            return;
+        }
+        try {
+            workFile.setFlags(data[0], flag);
         } catch (IOException e) {
             e.printStackTrace();
         }
-            
     }
 
-    private static void writeCurrentProcessingPrefix(String statusFilePath, String lastProcessingPrefix) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(statusFilePath))) {
-            writer.write(lastProcessingPrefix);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void cleanNamespace(final String[] data, final boolean dryRun, final RunJournal.Output completed,
+            final RunJournal.Output rejected, final RunJournal.Output skipped) throws RepositoryException {
+        final RegistrySnapshot registry = registrySnapshot();
+        if (! registry.isNamespaceRegistered(data[0])) {
+            LOGGER.info("Namespace already unregistered.");
+            skipped.write(data);
+            registry.unlink(data[0]);
+            return;
+        }
+        if (registry.hasChildNamespaces(data[0])) {
+            LOGGER.info("Rejecting - has child namespace URIs");
+            rejected.write(data);
+        } else if (registry.isNodeTypeRegistered(data[2])) {
+            LOGGER.info("  Cannot unregister namespace while corresponding nodeType still exists");
+            rejected.write(data);
+        } else {
+            if (! dryRun) {
+                final RunMetrics.Sample sample = metrics.unregisterNamespace.start(data[0]);
+                try {
+                    sessionWrites++;
+                    namespaceRegistry.unregisterNamespace(data[0]);
+                    registry.namespaceUnregistered(data[0]);
+                } catch (NamespaceException e) {
+                    e.printStackTrace();
+                } finally {
+                    sample.stop();
+                }
+            }
+            registry.unlink(data[0]);
+            completed.write(data);
+            LOGGER.info(" Unregistered namespace: " + data[0]);
+        }
+    }
+
+    // Unregister a batch of nodetypes with a single save. A failed batch is split in half and retried
+    // until the rows that cause the failure are isolated and rejected on their own.
+    private void unregisterNodeTypes(final List<CsvRow> rows, final boolean dryRun, final RunJournal.Output completed,
+            final RunJournal.Output rejected, final RunJournal journal) throws IOException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        final String[] nodeTypes = new String[rows.size()];
+        for (int i = 0; i < nodeTypes.length; i++) {
+            nodeTypes[i] = rows.get(i).data[2];
+        }
+
+        try {
+            if (! dryRun) {
+                final RunMetrics.Sample unregisterSample = metrics.unregisterNodeType.start(nodeTypes[0]);
+                try {
+                    if (nodeTypes.length == 1) {
+                        nodeTypeManager.unregisterNodeType(nodeTypes[0]);
+                    } else {
+                        nodeTypeManager.unregisterNodeTypes(nodeTypes);
+                    }
+                    sessionWrites += nodeTypes.length;
+                } finally {
+                    unregisterSample.stop();
+                }
+            }
+            final RunMetrics.Sample saveSample = metrics.save.start(null);
+            try {
+                sessionWrites++;
+                session.save();
+            } finally {
+                saveSample.stop();
+            }
+            for (final CsvRow row : rows) {
+                LOGGER.info(" Unregistered nodeType: " + row.data[2]);
+                if (! dryRun) {
+                    snapshotNodeTypeUnregistered(row.data[2]);
+                }
+                completed.write(row.data);
+                journal.processed(row.sequence);
+            }
+        } catch (RepositoryException e) {
+            try {
+                session.refresh(false);
+            } catch (RepositoryException refreshException) {
+                refreshException.printStackTrace();
+            }
+
+            if (rows.size() > 1) {
+                LOGGER.info("Batch of " + rows.size() + " nodeTypes failed, splitting: " + e.getMessage());
+                final int middle = rows.size() / 2;
+                unregisterNodeTypes(rows.subList(0, middle), dryRun, completed, rejected, journal);
+                unregisterNodeTypes(rows.subList(middle, rows.size()), dryRun, completed, rejected, journal);
+                return;
+            }
+
+            final CsvRow row = rows.get(0);
+            try {
+                // The registry change is not transactional with the save, it may already be gone
+                if (! dryRun && ! nodeTypeManager.hasNodeType(row.data[2])) {
+                    LOGGER.info(" Unregistered nodeType: " + row.data[2]);
+                    snapshotNodeTypeUnregistered(row.data[2]);
+                    completed.write(row.data);
+                    journal.processed(row.sequence);
+                    return;
+                }
+            } catch (RepositoryException checkException) {
+                checkException.printStackTrace();
+            }
+            LOGGER.info("Rejecting - unable to unregister nodeType " + row.data[2] + ": " + e.getMessage());
+            rejected.write(row.data);
+            journal.processed(row.sequence);
+        }
+    }
+
+    // Keep a snapshot taken earlier in the run in step with the nodetype registry
+    private void snapshotNodeTypeUnregistered(final String nodeType) {
+        if (registrySnapshot != null) {
+            registrySnapshot.nodeTypeUnregistered(nodeType);
         }
     }
 
     private boolean hasSpuriousNodeTypeExists() {
         boolean found = false;
         try {
-            NodeTypeIterator nodeTypes = nodeTypeManager.getAllNodeTypes();
-            while (nodeTypes.hasNext()) {
-                String nodeTypeName = nodeTypes.nextNodeType().getName();
-                if (nodeTypeName.startsWith("ns") && nodeTypeName.endsWith(":None")) {
-                    LOGGER.info("Found spurious nodeTpe: " + nodeTypeName);
-                    found = true;
-                }
+            for (final String nodeTypeName : registrySnapshot().getAllNodeTypes()) {
+                LOGGER.info("Found spurious nodeTpe: " + nodeTypeName);
+                found = true;
             }
         } catch(RepositoryException e) {
             e.printStackTrace();
@@ -508,70 +1131,183 @@ public class NamespaceUtil {
         return found;
     }
 
-    private void buildNamespaceUriRelationships() {
-        try {
-            Set<String> namespaceURIs = Arrays.stream(namespaceRegistry.getURIs()).filter((k) -> k.contains("tx:")).collect(Collectors.toSet());
-            LOGGER.info("Building namespace uri relationships");
-
-            for(String uri : namespaceURIs) {
-                LOGGER.debug("Building relationship for: " + uri);
-                Set<String> parents;
-                Set<String> children = new HashSet<String>();
-                String trimmedUri = uri;
-                for (int i = 0; i < 4; i++) {
-                    trimmedUri = trimmedUri.substring(0, trimmedUri.lastIndexOf("/", trimmedUri.length()-2) + 1);
-                    LOGGER.debug("  Checking for parent at: " + trimmedUri);
-                    if (namespaceURIs.contains(trimmedUri)) {
-                        LOGGER.debug("    Found. Adding parent/child relationships.");
-                        parents = parentNamespaceUris.containsKey(uri) ? parentNamespaceUris.get(uri) : new HashSet<String>();
-                        children = childNamespaceUris.containsKey(trimmedUri) ? childNamespaceUris.get(trimmedUri) : new HashSet<String>();
-                        parents.add(trimmedUri);
-                        children.add(uri);
-                        parentNamespaceUris.put(uri, parents);
-                        childNamespaceUris.put(trimmedUri, children);
-                    }
-                }
-            }
+    // Order the rows so every namespace uri comes after the uris nested below it. Rows sharing a uri keep
+    // their input order.
+    private List<String[]> planCleanup(final Iterable<String[]> rows) {
+        final NamespaceUriTrie planTrie = new NamespaceUriTrie();
+        final Map<String, List<String[]>> rowsByUri = new HashMap<String, List<String[]>>();
+        int rowCount = 0;
+        for (final String[] data : rows) {
+            planTrie.add(data[1]);
+            rowsByUri.computeIfAbsent(data[1], k -> new ArrayList<String[]>(1)).add(data);
+            rowCount++;
+        }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        final List<String[]> plannedRows = new ArrayList<String[]>(rowCount);
+        for (final String uri : planTrie.leavesFirst()) {
+            plannedRows.addAll(rowsByUri.get(uri));
+        }
+        LOGGER.info("Planned cleanup order for " + rowCount + " rows");
+        return plannedRows;
+    }
+
+    private void generate() throws RepositoryException {
+        final String refusal = generateRefusal();
+        if (refusal != null) {
+            LOGGER.error("Not generating: " + refusal);
+            return;
         }
-        LOGGER.info("Building namespace uri relationships");
+        int namespaces = Integer.parseInt(getPropertyOrExit("generate.namespaces", "100000"));
+        int resources = Integer.getInteger("generate.resources", 0);
+        double resourceFraction = Double.parseDouble(System.getProperty("generate.fraction", "0.1"));
+        String parentPath = System.getProperty("generate.parent", "/generated");
+        String prefixBase = System.getProperty("generate.prefix", "ns");
+
+        LOGGER.info("Generating " + namespaces + " spurious namespaces and " + resources + " resources");
+        final long start = System.currentTimeMillis();
+        new SpuriousNamespaceGenerator(session, prefixBase, Integer.getInteger("generate.batch.size", 500))
+                .generate(namespaces, resources, resourceFraction, parentPath);
+        LOGGER.info("Generation finished in " + (System.currentTimeMillis() - start) + "ms");
     }
 
-    private boolean hasChildNamespaceUris(String uri) {
-        return (childNamespaceUris.get(uri) != null) && ! childNamespaceUris.get(uri).isEmpty(); 
+    // Why generate must not write to this repository, null when it is a benchmark or test repository: one
+    // started from an explicitly given configuration other than the bundled repository.json, whose name says
+    // it is for benchmarks or tests
+    private String generateRefusal() {
+        final String configuration = System.getProperty("fcrepo.modeshape.configuration");
+        if (configuration == null || configuration.replaceFirst("^classpath:", "/").endsWith("/repository.json")
+                || configuration.equals("repository.json")) {
+            return "set -Dfcrepo.modeshape.configuration to a benchmark or test configuration, not repository.json";
+        }
+        final String name = session.getRepository() instanceof org.modeshape.jcr.api.Repository
+                ? ((org.modeshape.jcr.api.Repository) session.getRepository()).getName() : null;
+        if (name == null || ! name.toLowerCase().matches(".*(benchmark|test).*")) {
+            return "repository \"" + name + "\" is not named as a benchmark or test repository";
+        }
+        return null;
     }
 
-    private void removeRelationships(String uri) {
-        LOGGER.debug(" Removing relationship for: " + uri);
-        if (parentNamespaceUris.get(uri) == null) {
+    // Check a clean's completed CSV against one fresh registry snapshot. Only nodetypes that are still
+    // registered are queried for resources, on the workers.
+    private void verify(final String filepath) throws RepositoryException, IOException {
+        final String mode = System.getProperty("clean.mode",
+                filepath.contains("-namespace-completed") ? "namespace" : "nodetype");
+        final boolean namespaceMode = "namespace".equalsIgnoreCase(mode);
+        final String reportFilePath = filepath.replaceFirst("(\\.csv)?(\\.dryrun)?$", "-verify-report.csv");
+        final long start = System.currentTimeMillis();
+
+        final RegistrySnapshot registry = takeRegistrySnapshot();
+        final long snapshotMillis = System.currentTimeMillis() - start;
+        final long[] counts = new long[2];
+
+        try (CSVReader reader = new CSVReader(new FileReader(filepath));
+                CSVWriter report = new CSVWriter(new FileWriter(reportFilePath))) {
+            reader.skip(1);
+            report.writeNext(new String[] {"namespace", "namespaceUri", "nodeType", "resource", "problem"});
+            metrics.setTotalRows(RunMetrics.countRows(filepath));
+
+            final WorkerPool.OrderedRun<String[], String> resourceCheck = workerPool.start(
+                (probe, data) -> {
+                    if (namespaceMode || "".equals(data[2]) || ! registry.isNodeTypeRegistered(data[2])) {
+                        return null;
+                    }
+                    try {
+                        return probe.firstPath(data[2]);
+                    } catch (InvalidQueryException | QueryTimeoutException e) {
+                        // Still reported below, the nodetype is registered
+                        LOGGER.warn("Resource query for " + data[2] + " failed: " + e.getMessage());
+                        return null;
+                    }
+                },
+                (data, path) -> {
+                    metrics.completed.incrementAndGet();
+                    counts[0]++;
+                    final String problem;
+                    if (namespaceMode) {
+                        if (registry.isNamespaceRegistered(data[0])) {
+                            problem = "namespace still registered";
+                        } else {
+                            problem = null;
+                        }
+                    } else if (path != null) {
+                        problem = "nodetype still registered and used by " + path;
+                    } else if (! "".equals(data[2]) && registry.isNodeTypeRegistered(data[2])) {
+                        problem = "nodetype still registered";
+                    } else {
+                        problem = null;
+                    }
+                    if (problem != null) {
+                        counts[1]++;
+                        LOGGER.info("  " + data[0] + " " + data[2] + ": " + problem);
+                        report.writeNext(new String[] {data[0], data[1], data[2], data[3], problem});
+                    }
+                });
+            for (final String[] data : reader) {
+                resourceCheck.submit(data);
+            }
+            resourceCheck.finish();
+        }
+
+        final long totalMillis = System.currentTimeMillis() - start;
+        LOGGER.info("Verified " + counts[0] + " " + mode + " rows in " + totalMillis + "ms (snapshot "
+                + snapshotMillis + "ms, checks " + (totalMillis - snapshotMillis) + "ms): " + counts[1]
+                + " discrepancies, see " + reportFilePath);
+    }
+
+    private void watch(final String filepath) throws RepositoryException, IOException {
+        if (WorkFile.isWorkFile(filepath)) {
+            LOGGER.error("Work files have a fixed row count, watch appends to a list CSV instead");
             return;
         }
-        for(String parent : parentNamespaceUris.get(uri)) {
-            childNamespaceUris.get(parent).remove(uri);
-            LOGGER.debug("  Removed from: " + parent);
+        new NamespaceWatcher(session, registrySnapshot(), NamespaceUtil::isSpuriousNodeType,
+                Integer.getInteger("watch.queue.size", 10000)).watch(filepath, Long.getLong("watch.seconds", 0L),
+                Long.getLong("watch.reconcile.seconds", 300L));
+    }
+
+    private void remap(final String filepath) throws RepositoryException, IOException {
+        final boolean dryRun = Boolean.parseBoolean(System.getProperty("dryrun"));
+        final String dryRunStr = dryRun ? ".dryrun" : "";
+        if (dryRun) {
+            LOGGER.warn("Running in DRY RUN mode -- will NOT register namespaces.");
         }
+        final long start = System.currentTimeMillis();
+        new PrefixRemapper(namespaceRegistry, metrics.registerNamespace, dryRun,
+                Integer.getInteger("remap.batch.size", 500)).remap(filepath,
+                filepath.replace(".csv", "-" + startTime + "-remap-completed.csv" + dryRunStr),
+                filepath.replace(".csv", "-" + startTime + "-remap-rejected.csv" + dryRunStr));
+        registrySnapshot = null;
+        LOGGER.info("Remap finished in " + (System.currentTimeMillis() - start) + "ms");
     }
 
-    private boolean doesNodeTypeExists(String nodeType) throws RepositoryException {
-        boolean exists = false;
+    private void provisionIndex() throws RepositoryException {
+        final IndexProvisioner provisioner = new IndexProvisioner(session,
+                System.getProperty("index.name", IndexProvisioner.DEFAULT_INDEX_NAME));
+        if ("drop".equalsIgnoreCase(System.getProperty("index.action"))) {
+            provisioner.drop();
+            return;
+        }
         try {
-            exists = nodeTypeManager.hasNodeType(nodeType);
-        } catch(ValueFormatException e) {
+            if (! provisioner.provision(System.getProperty("index.provider"),
+                    Long.getLong("index.progress.seconds", 30L))) {
+                LOGGER.error("Nodetype index was not provisioned");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             e.printStackTrace();
         }
-        return exists;
     }
 
-    private boolean doesNamespaceExists(String prefix) throws RepositoryException {
-        boolean exists = false;
-        try {
-            exists = ! namespaceRegistry.getURI(prefix).isEmpty();
-        } catch(Exception e) {
+    private void plan(String filepath) {
+        final String planFilePath = filepath.replace(".csv", "-plan.csv");
+        try (CSVReader reader = new CSVReader(new FileReader(filepath));
+                CSVWriter writer = new CSVWriter(new FileWriter(planFilePath))) {
+            writer.writeNext(reader.readNext());
+            for (final String[] data : planCleanup(reader)) {
+                writer.writeNext(data);
+            }
+            LOGGER.info("Wrote cleanup plan to " + planFilePath);
+        } catch (Exception e) {
             e.printStackTrace();
         }
-        return exists;
     }
 }
-
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import javax.jcr.NamespaceException;
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.NodeTypeIterator;
+import javax.jcr.nodetype.NodeTypeManager;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+import org.slf4j.Logger;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import com.opencsv.exceptions.CsvValidationException;
+
+/**
+ * Watches the repository for new spurious namespaces, nodetypes and resources using them, after
+ * one baseline registry snapshot. Observation events are only queued by the listener; the watching
+ * thread handles each one with a lookup of the single namespace, nodetype or node it names, and
+ * appends a row for anything not seen before to the list CSV. Memory grows with what is found and
+ * the resource rows already in the CSV, not with the repository. The event queue is bounded and
+ * never blocks the repository's event thread: an event that does not fit is dropped.
+ *
+ * Events only reach this process from changes made in it, or in other members of the same
+ * ModeShape cluster. A periodic reconcile against the registry and the resource queries catches
+ * what the events miss, including dropped events.
+ **/
+public class NamespaceWatcher implements EventListener {
+
+    private static final Logger LOGGER = getLogger(NamespaceWatcher.class);
+
+    private static final String NAMESPACES_PATH = "/jcr:system/mode:namespaces/";
+
+    private static final String NODE_TYPES_PATH = "/jcr:system/jcr:nodeTypes/";
+
+    private static final String[] HEADER = {"namespace", "namespaceUri", "nodeType", "resource"};
+
+    private final Session session;
+
+    private final NamespaceRegistry namespaceRegistry;
+
+    private final RegistrySnapshot baseline;
+
+    private final Predicate<String> spuriousNodeType;
+
+    private final BlockingQueue<String[]> events;
+
+    private final NodeTypeManager nodeTypeManager;
+
+    private final ExistenceProbe probe;
+
+    // Namespaces and nodetypes found since the baseline
+    private final Set<String> found = new HashSet<String>();
+
+    // Nodetype and resource path of every resource row in the CSV, written before or since the baseline
+    private final Set<String> reported = new HashSet<String>();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private int knownPrefixCount;
+
+    private int knownNodeTypeCount;
+
+    private long knownDroppedCount = 0;
+
+    private long eventCount = 0;
+
+    private long rowCount = 0;
+
+    private volatile boolean stopped = false;
+
+    public NamespaceWatcher(final Session session, final RegistrySnapshot baseline,
+            final Predicate<String> spuriousNodeType, final int queueSize) throws RepositoryException {
+        this.session = session;
+        this.namespaceRegistry = session.getWorkspace().getNamespaceRegistry();
+        this.baseline = baseline;
+        this.spuriousNodeType = spuriousNodeType;
+        this.events = new ArrayBlockingQueue<String[]>(Math.max(1, queueSize));
+        this.nodeTypeManager = session.getWorkspace().getNodeTypeManager();
+        this.probe = new ExistenceProbe(session);
+    }
+
+    /**
+     * Watch until stopped or the time is up, appending to the CSV
+     *
+     * @param filepath list CSV to append to, created with a header if missing
+     * @param seconds how long to watch, 0 for no limit
+     * @param reconcileSeconds how often to catch up on what the events missed, 0 never
+     **/
+    public void watch(final String filepath, final long seconds, final long reconcileSeconds)
+            throws RepositoryException, IOException {
+        final ObservationManager observationManager = session.getWorkspace().getObservationManager();
+        observationManager.addEventListener(this, Event.NODE_ADDED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED,
+                "/", true, null, null, false);
+        knownPrefixCount = namespaceRegistry.getPrefixes().length;
+        knownNodeTypeCount = nodeTypeCount();
+        LOGGER.info("Watching for spurious namespaces, " + knownPrefixCount + " prefixes registered at the start");
+
+        final boolean exists = new File(filepath).isFile();
+        if (exists) {
+            readReported(filepath);
+        }
+        final long deadline = seconds > 0 ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds)
+                : Long.MAX_VALUE;
+        long nextReconcile = reconcileSeconds > 0
+                ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(reconcileSeconds) : Long.MAX_VALUE;
+        try (CSVWriter writer = new CSVWriter(new FileWriter(filepath, true))) {
+            if (! exists) {
+                writer.writeNext(HEADER);
+            }
+            while (! stopped && System.currentTimeMillis() < deadline) {
+                final String[] event = events.poll(1, TimeUnit.SECONDS);
+                if (event != null) {
+                    handle(event, writer);
+                    // Drain what has queued up meanwhile, then flush once
+                    String[] next;
+                    while ((next = events.poll()) != null) {
+                        handle(next, writer);
+                    }
+                    writer.flush();
+                }
+                if (System.currentTimeMillis() >= nextReconcile) {
+                    reconcile(writer);
+                    writer.flush();
+                    nextReconcile += TimeUnit.SECONDS.toMillis(reconcileSeconds);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            observationManager.removeEventListener(this);
+            LOGGER.info("Stopped watching after " + eventCount + " events, wrote " + rowCount + " rows");
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    // Called on the repository's event thread, only queue what the watching thread needs to look at
+    @Override
+    public void onEvent(final EventIterator iterator) {
+        while (iterator.hasNext()) {
+            final Event event = iterator.nextEvent();
+            try {
+                final String path = event.getPath();
+                if (event.getType() == Event.NODE_ADDED) {
+                    if (path.startsWith(NAMESPACES_PATH) || path.startsWith(NODE_TYPES_PATH)) {
+                        queue(new String[] {"node", path});
+                    }
+                } else if (path.endsWith("/jcr:mixinTypes") || path.endsWith("/jcr:primaryType")) {
+                    queue(new String[] {"types", path.substring(0, path.lastIndexOf('/'))});
+                }
+            } catch (RepositoryException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // A full queue drops the event rather than stall the event thread, the next reconcile recovers it
+    private void queue(final String[] event) {
+        if (! events.offer(event) && droppedCount.getAndIncrement() % 1000 == 0) {
+            LOGGER.warn("Event queue full, " + droppedCount.get() + " events dropped, left for the reconcile");
+        }
+    }
+
+    private void handle(final String[] event, final CSVWriter writer) throws RepositoryException {
+        eventCount++;
+        final String path = event[1];
+        if ("types".equals(event[0])) {
+            resourceTypesChanged(path, writer);
+        } else if (path.startsWith(NAMESPACES_PATH)) {
+            namespaceAdded(lastSegment(path.substring(NAMESPACES_PATH.length())), writer);
+        } else {
+            final String nodeType = lastSegment(path.substring(NODE_TYPES_PATH.length()));
+            if (spuriousNodeType.test(nodeType)) {
+                nodeTypeAdded(nodeType, writer);
+            }
+        }
+    }
+
+    private static String lastSegment(final String relativePath) {
+        final int separator = relativePath.indexOf('/');
+        return separator < 0 ? relativePath : relativePath.substring(0, separator);
+    }
+
+    private void namespaceAdded(final String prefix, final CSVWriter writer) throws RepositoryException {
+        if (baseline.isNamespaceRegistered(prefix) || found.contains(prefix)) {
+            return;
+        }
+        final String uri = uriOf(prefix);
+        if (uri == null || ! prefix.startsWith("ns") || ! uri.contains("tx:")) {
+            return;
+        }
+        found.add(prefix);
+        LOGGER.info("New spurious namespace: " + prefix + " " + uri);
+        write(writer, new String[] {prefix, uri, "", ""});
+    }
+
+    private void nodeTypeAdded(final String nodeType, final CSVWriter writer) throws RepositoryException {
+        if (baseline.isNodeTypeRegistered(nodeType) || ! found.add(nodeType)) {
+            return;
+        }
+        final String prefix = nodeType.substring(0, nodeType.indexOf(':'));
+        LOGGER.info("New spurious nodetype: " + nodeType);
+        write(writer, new String[] {prefix, uriOf(prefix), nodeType, ""});
+    }
+
+    private void resourceTypesChanged(final String nodePath, final CSVWriter writer) throws RepositoryException {
+        final Node node;
+        try {
+            node = session.getNode(nodePath);
+        } catch (PathNotFoundException e) {
+            return;
+        }
+        final NodeType[] mixins = node.getMixinNodeTypes();
+        for (int i = -1; i < mixins.length; i++) {
+            final String nodeType = i < 0 ? node.getPrimaryNodeType().getName() : mixins[i].getName();
+            if (! spuriousNodeType.test(nodeType)) {
+                continue;
+            }
+            resourceFound(nodeType, nodePath, writer);
+        }
+    }
+
+    // Every mixin change lists all of the node's types again, a row is only written once per nodetype and path
+    private void resourceFound(final String nodeType, final String nodePath, final CSVWriter writer)
+            throws RepositoryException {
+        if (! reported.add(nodeType + " " + nodePath)) {
+            return;
+        }
+        final String prefix = nodeType.substring(0, nodeType.indexOf(':'));
+        // The nodetype row with its resource stands for the namespace and nodetype as well
+        if (! baseline.isNamespaceRegistered(prefix)) {
+            found.add(prefix);
+        }
+        if (! baseline.isNodeTypeRegistered(nodeType)) {
+            found.add(nodeType);
+        }
+        LOGGER.info("Resource using " + nodeType + ": " + nodePath);
+        write(writer, new String[] {prefix, uriOf(prefix), nodeType, nodePath});
+    }
+
+    // Catch up on what the events missed. Namespaces and nodetypes are walked when their registry has changed
+    // size, and the resources of the nodetypes found so far are queried. After dropped events every spurious
+    // nodetype is walked and queried, as the dropped events may have named any of them.
+    private void reconcile(final CSVWriter writer) throws RepositoryException {
+        final long dropped = droppedCount.get();
+        final boolean full = dropped != knownDroppedCount;
+        knownDroppedCount = dropped;
+
+        final String[] prefixes = namespaceRegistry.getPrefixes();
+        if (full || prefixes.length != knownPrefixCount) {
+            LOGGER.info("Reconciling namespaces, " + knownPrefixCount + " prefixes before, " + prefixes.length
+                    + " now");
+            knownPrefixCount = prefixes.length;
+            for (final String prefix : prefixes) {
+                namespaceAdded(prefix, writer);
+            }
+        }
+
+        final Set<String> resourceTypes = new HashSet<String>();
+        final int nodeTypeCount = nodeTypeCount();
+        if (full || nodeTypeCount != knownNodeTypeCount) {
+            LOGGER.info("Reconciling nodetypes, " + knownNodeTypeCount + " before, " + nodeTypeCount + " now");
+            knownNodeTypeCount = nodeTypeCount;
+            final NodeTypeIterator nodeTypes = nodeTypeManager.getAllNodeTypes();
+            while (nodeTypes.hasNext()) {
+                final String nodeType = nodeTypes.nextNodeType().getName();
+                if (spuriousNodeType.test(nodeType)) {
+                    nodeTypeAdded(nodeType, writer);
+                    if (full) {
+                        resourceTypes.add(nodeType);
+                    }
+                }
+            }
+        }
+
+        for (final String name : found) {
+            if (name.indexOf(':') >= 0) {
+                resourceTypes.add(name);
+            }
+        }
+        for (final String nodeType : resourceTypes) {
+            probe.forget(nodeType);
+            try {
+                for (final String path : probe.allPaths(nodeType)) {
+                    resourceFound(nodeType, path, writer);
+                }
+            } catch (RepositoryException e) {
+                LOGGER.warn("Resource query for " + nodeType + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private int nodeTypeCount() throws RepositoryException {
+        return (int) nodeTypeManager.getAllNodeTypes().getSize();
+    }
+
+    // Resource rows already in the CSV, e.g. from the list run the watch follows, are not written again
+    private void readReported(final String filepath) throws IOException {
+        try (CSVReader reader = new CSVReader(new FileReader(filepath))) {
+            reader.skip(1);
+            String[] data;
+            while ((data = reader.readNext()) != null) {
+                if (data.length > 3 && ! data[2].isEmpty() && ! data[3].isEmpty()) {
+                    reported.add(data[2] + " " + data[3]);
+                }
+            }
+        } catch (CsvValidationException e) {
+            throw new IOException(e);
+        }
+        LOGGER.info(reported.size() + " resource rows already in " + filepath);
+    }
+
+    private String uriOf(final String prefix) throws RepositoryException {
+        try {
+            return namespaceRegistry.getURI(prefix);
+        } catch (NamespaceException e) {
+            return null;
+        }
+    }
+
+    private void write(final CSVWriter writer, final String[] row) {
+        writer.writeNext(row);
+        rowCount++;
+    }
+}
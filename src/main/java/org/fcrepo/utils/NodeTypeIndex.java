@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+
+import org.slf4j.Logger;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+
+/**
+ * In-memory inverted index from nodetype name to the paths of the nodes using it,
+ * built from a single walk of the workspace.
+ **/
+public class NodeTypeIndex {
+
+    private static final Logger LOGGER = getLogger(NodeTypeIndex.class);
+
+    private static final String SYSTEM_PATH = "/jcr:system";
+
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    private final Map<String, List<String>> pathsByNodeType = new HashMap<String, List<String>>();
+
+    private long nodeCount = 0;
+
+    /**
+     * Walk the workspace once, recording the primary type and mixin types of every node
+     * whose name is accepted by the filter.
+     **/
+    public static NodeTypeIndex scan(final Session session, final Predicate<String> nodeTypeFilter)
+            throws RepositoryException {
+        final NodeTypeIndex index = new NodeTypeIndex();
+        final long start = System.currentTimeMillis();
+        LOGGER.info("Scanning workspace for nodetype usage");
+
+        // Explicit stack rather than recursion, the fedora hierarchy can be very deep
+        final Deque<Node> pending = new ArrayDeque<Node>();
+        pending.push(session.getRootNode());
+        while (!pending.isEmpty()) {
+            final Node node = pending.pop();
+            final String path = node.getPath();
+            if (path.equals(SYSTEM_PATH) || path.startsWith(SYSTEM_PATH + "/")) {
+                continue;
+            }
+
+            final String primaryType = node.getPrimaryNodeType().getName();
+            if (nodeTypeFilter.test(primaryType)) {
+                index.add(primaryType, path);
+            }
+            for (final NodeType mixin : node.getMixinNodeTypes()) {
+                if (nodeTypeFilter.test(mixin.getName())) {
+                    index.add(mixin.getName(), path);
+                }
+            }
+
+            if (++index.nodeCount % PROGRESS_INTERVAL == 0) {
+                LOGGER.info("  Scanned " + index.nodeCount + " nodes");
+            }
+
+            final NodeIterator children = node.getNodes();
+            while (children.hasNext()) {
+                pending.push(children.nextNode());
+            }
+        }
+
+        LOGGER.info("Scanned " + index.nodeCount + " nodes in " + (System.currentTimeMillis() - start) + "ms, found "
+                + index.pathsByNodeType.size() + " nodetypes in use");
+        return index;
+    }
+
+    /**
+     * Read an index previously written by {@link #save(String)}
+     **/
+    public static NodeTypeIndex load(final String filepath) throws IOException {
+        final NodeTypeIndex index = new NodeTypeIndex();
+        LOGGER.info("Loading nodetype index from " + filepath);
+        try (CSVReader reader = new CSVReader(new FileReader(filepath))) {
+            // Skip header row
+            reader.skip(1);
+
+            final Iterator<String[]> csvRowIterator = reader.iterator();
+            while (csvRowIterator.hasNext()) {
+                final String[] data = csvRowIterator.next();
+                index.add(data[0], data[1]);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Persist the index as a "nodeType","path" CSV so a later run can reuse it
+     **/
+    public void save(final String filepath) throws IOException {
+        LOGGER.info("Writing nodetype index to " + filepath);
+        try (CSVWriter writer = new CSVWriter(new FileWriter(filepath))) {
+            final String[] data = {"nodeType", "path"};
+            writer.writeNext(data);
+            for (final Map.Entry<String, List<String>> entry : pathsByNodeType.entrySet()) {
+                data[0] = entry.getKey();
+                for (final String path : entry.getValue()) {
+                    data[1] = path;
+                    writer.writeNext(data);
+                }
+            }
+        }
+    }
+
+    private void add(final String nodeType, final String path) {
+        List<String> paths = pathsByNodeType.get(nodeType);
+        if (paths == null) {
+            paths = new ArrayList<String>(1);
+            pathsByNodeType.put(nodeType, paths);
+        }
+        paths.add(path);
+    }
+
+    /**
+     * Get the paths of the nodes using the nodetype, empty if there are none
+     **/
+    public List<String> getPaths(final String nodeType) {
+        final List<String> paths = pathsByNodeType.get(nodeType);
+        return paths == null ? Collections.<String>emptyList() : Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * Get the paths of the nodes using the nodetype, leaving out any entry whose node no longer
+     * exists or no longer carries the nodetype. Used when the index was loaded from disk and
+     * resources may have been patched since it was written. Resources added since then are not
+     * in the index, so an empty result still needs checking against the repository.
+     **/
+    public List<String> getVerifiedPaths(final Session session, final String nodeType) throws RepositoryException {
+        final List<String> paths = pathsByNodeType.get(nodeType);
+        if (paths == null) {
+            return Collections.<String>emptyList();
+        }
+        final List<String> verifiedPaths = new ArrayList<String>(paths.size());
+        for (final String path : paths) {
+            try {
+                if (session.getNode(path).isNodeType(nodeType)) {
+                    verifiedPaths.add(path);
+                } else {
+                    LOGGER.debug("  Stale index entry, nodetype removed from: " + path);
+                }
+            } catch (PathNotFoundException e) {
+                LOGGER.debug("  Stale index entry, node removed: " + path);
+            }
+        }
+        return verifiedPaths;
+    }
+
+    public Set<String> getNodeTypes() {
+        return Collections.unmodifiableSet(pathsByNodeType.keySet());
+    }
+
+    public long getNodeCount() {
+        return nodeCount;
+    }
+}
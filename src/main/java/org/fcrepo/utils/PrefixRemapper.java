@@ -0,0 +1,331 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.NamespaceException;
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.RepositoryException;
+
+import org.slf4j.Logger;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import com.opencsv.exceptions.CsvValidationException;
+
+/**
+ * Renames namespace prefixes in bulk. Re-registering a namespace URI under a new prefix moves the
+ * URI to that prefix, so each mapping takes a single registerNamespace call once its new prefix is
+ * free. Mappings are applied in an order that frees each new prefix before it is taken: along a
+ * chain a->b, b->c the move b->c goes first, and a cycle a->b, b->a is opened by parking one prefix
+ * under a temporary prefix, costing one extra call per cycle.
+ **/
+public class PrefixRemapper {
+
+    private static final Logger LOGGER = getLogger(PrefixRemapper.class);
+
+    // Parking prefix for a mapping's source while a cycle is opened, derived from the source so a rerun finds it
+    static final String TEMP_PREFIX = "remaptmp_";
+
+    private static final String[] COMPLETED_HEADER = {"from", "to", "namespaceUri", "calls", "millis"};
+
+    private static final String[] REJECTED_HEADER = {"from", "to", "reason"};
+
+    private final NamespaceRegistry namespaceRegistry;
+
+    private final RunMetrics.Timer registerTimer;
+
+    private final boolean dryRun;
+
+    private final int batchSize;
+
+    // Current prefix to URI, kept in step with the registry, or standing in for it on a dry run
+    private final Map<String, String> registered = new HashMap<String, String>();
+
+    // Pending mappings by the prefix currently holding the URI, and by their new prefix
+    private final Map<String, Mapping> bySource = new LinkedHashMap<String, Mapping>();
+
+    private final Map<String, Mapping> byTarget = new HashMap<String, Mapping>();
+
+    private CSVWriter completed;
+
+    private CSVWriter rejected;
+
+    private int unflushed = 0;
+
+    private long calls = 0;
+
+    public PrefixRemapper(final NamespaceRegistry namespaceRegistry, final RunMetrics.Timer registerTimer,
+            final boolean dryRun, final int batchSize) {
+        this.namespaceRegistry = namespaceRegistry;
+        this.registerTimer = registerTimer;
+        this.dryRun = dryRun;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Apply a "from","to" mapping CSV, with a header row
+     *
+     * @param mappingPath the mapping CSV
+     * @param completedPath output of the applied mappings, with the calls made and time taken for each
+     * @param rejectedPath output of the mappings that cannot be applied, with the reason
+     **/
+    public void remap(final String mappingPath, final String completedPath, final String rejectedPath)
+            throws IOException, RepositoryException {
+        for (final String prefix : namespaceRegistry.getPrefixes()) {
+            registered.put(prefix, namespaceRegistry.getURI(prefix));
+        }
+
+        try (CSVWriter completedWriter = new CSVWriter(new FileWriter(completedPath));
+                CSVWriter rejectedWriter = new CSVWriter(new FileWriter(rejectedPath))) {
+            completed = completedWriter;
+            rejected = rejectedWriter;
+            completed.writeNext(COMPLETED_HEADER);
+            rejected.writeNext(REJECTED_HEADER);
+
+            final long start = System.currentTimeMillis();
+            final int mappings = readMappings(mappingPath);
+            rejectBlocked();
+            final int applied = apply();
+            LOGGER.info((dryRun ? "Planned " : "Applied ") + applied + " of " + mappings + " prefix mappings in "
+                    + (System.currentTimeMillis() - start) + "ms, " + calls + " registerNamespace calls");
+        }
+    }
+
+    private int readMappings(final String mappingPath) throws IOException {
+        final Set<String> targets = new HashSet<String>();
+        final Set<String> sources = new HashSet<String>();
+        int count = 0;
+        try (CSVReader reader = new CSVReader(new FileReader(mappingPath))) {
+            reader.skip(1);
+            String[] data;
+            while ((data = reader.readNext()) != null) {
+                count++;
+                final String from = data[0].trim();
+                final String to = data[1].trim();
+                if (from.equals(to)) {
+                    continue;
+                }
+                if (! sources.add(from)) {
+                    reject(from, to, "prefix mapped more than once");
+                    continue;
+                }
+                if (! targets.add(to)) {
+                    reject(from, to, "new prefix is the target of another mapping");
+                    continue;
+                }
+                // A rerun finds a mapping already applied, or its source parked under the temporary prefix
+                String source = from;
+                if (! registered.containsKey(from)) {
+                    if (registered.containsKey(TEMP_PREFIX + from)) {
+                        source = TEMP_PREFIX + from;
+                    } else if (registered.containsKey(to)) {
+                        LOGGER.info("Already remapped: " + from + " -> " + to);
+                        continue;
+                    } else {
+                        reject(from, to, "no such prefix");
+                        continue;
+                    }
+                }
+                final Mapping mapping = new Mapping(from, to, source, registered.get(source));
+                bySource.put(source, mapping);
+                byTarget.put(to, mapping);
+            }
+        } catch (CsvValidationException e) {
+            throw new IOException(e);
+        }
+        return count;
+    }
+
+    // A mapping whose new prefix is held by a namespace that is not moving away can never be applied,
+    // and neither can any mapping chained behind it
+    private void rejectBlocked() throws IOException {
+        final Deque<Mapping> blocked = new ArrayDeque<Mapping>();
+        for (final Mapping mapping : bySource.values()) {
+            if (registered.containsKey(mapping.to) && ! bySource.containsKey(mapping.to)) {
+                blocked.add(mapping);
+            }
+        }
+        while (! blocked.isEmpty()) {
+            final Mapping mapping = blocked.poll();
+            bySource.remove(mapping.source);
+            byTarget.remove(mapping.to);
+            reject(mapping.from, mapping.to, "new prefix " + mapping.to + " stays in use");
+            final Mapping behind = byTarget.get(mapping.source);
+            if (behind != null) {
+                blocked.add(behind);
+            }
+        }
+    }
+
+    // Apply every mapping whose new prefix is free, each one frees its source for the mapping behind it.
+    // What is left once none is free are cycles, each opened by parking one source.
+    private int apply() throws IOException, RepositoryException {
+        final Deque<Mapping> ready = new ArrayDeque<Mapping>();
+        for (final Mapping mapping : bySource.values()) {
+            if (! bySource.containsKey(mapping.to)) {
+                ready.add(mapping);
+            }
+        }
+        int applied = 0;
+        while (! bySource.isEmpty()) {
+            if (ready.isEmpty()) {
+                // Any member can open the cycle, pick one whose temporary prefix is free before anything moves
+                final List<Mapping> cycle = cycleOf(bySource.values().iterator().next());
+                Mapping mapping = null;
+                for (final Mapping member : cycle) {
+                    if (! registered.containsKey(TEMP_PREFIX + member.from)) {
+                        mapping = member;
+                        break;
+                    }
+                }
+                if (mapping == null) {
+                    for (final Mapping member : cycle) {
+                        bySource.remove(member.source);
+                        byTarget.remove(member.to);
+                        reject(member.from, member.to, "temporary prefix " + TEMP_PREFIX + member.from
+                                + " is in use, as are those of the rest of its cycle");
+                    }
+                    continue;
+                }
+                final String temp = TEMP_PREFIX + mapping.from;
+                LOGGER.info("Opening cycle at " + mapping.from + " through " + temp);
+                final String released = mapping.source;
+                bySource.remove(released);
+                move(mapping, temp);
+                bySource.put(temp, mapping);
+                freed(released, ready);
+                continue;
+            }
+
+            final Mapping mapping = ready.poll();
+            final String released = mapping.source;
+            bySource.remove(released);
+            byTarget.remove(mapping.to);
+            move(mapping, mapping.to);
+            completed(mapping);
+            applied++;
+            freed(released, ready);
+        }
+        return applied;
+    }
+
+    // Once no mapping is ready, every one left waits on the next in a cycle: each new prefix is the source of
+    // another pending mapping, and no two share a new prefix
+    private List<Mapping> cycleOf(final Mapping start) {
+        final List<Mapping> cycle = new ArrayList<Mapping>();
+        Mapping member = start;
+        do {
+            cycle.add(member);
+            member = bySource.get(member.to);
+        } while (member != null && member != start && cycle.size() <= bySource.size());
+        return cycle;
+    }
+
+    // The prefix is no longer held, the mapping waiting for it can go
+    private void freed(final String prefix, final Deque<Mapping> ready) {
+        final Mapping waiting = byTarget.get(prefix);
+        if (waiting != null) {
+            ready.add(waiting);
+        }
+    }
+
+    private void move(final Mapping mapping, final String newPrefix) throws RepositoryException {
+        final long startNanos = System.nanoTime();
+        if (! dryRun) {
+            final RunMetrics.Sample sample = registerTimer.start(newPrefix);
+            try {
+                namespaceRegistry.registerNamespace(newPrefix, mapping.uri);
+            } catch (NamespaceException e) {
+                throw new RepositoryException("Unable to move " + mapping.source + " to " + newPrefix, e);
+            } finally {
+                sample.stop();
+            }
+        }
+        registered.remove(mapping.source);
+        registered.put(newPrefix, mapping.uri);
+        mapping.source = newPrefix;
+        mapping.calls++;
+        calls++;
+        mapping.nanos += System.nanoTime() - startNanos;
+        LOGGER.info((dryRun ? " Would remap " : " Remapped ") + mapping.from + " -> " + newPrefix);
+    }
+
+    private void completed(final Mapping mapping) {
+        completed.writeNext(new String[] {mapping.from, mapping.to, mapping.uri, String.valueOf(mapping.calls),
+            String.format("%.3f", mapping.nanos / 1e6)});
+        flushBatch();
+    }
+
+    private void reject(final String from, final String to, final String reason) {
+        LOGGER.info("Rejecting " + from + " -> " + to + ": " + reason);
+        rejected.writeNext(new String[] {from, to, reason});
+        flushBatch();
+    }
+
+    // Outputs are flushed every batch, the registry itself takes each call immediately
+    private void flushBatch() {
+        if (++unflushed < batchSize) {
+            return;
+        }
+        unflushed = 0;
+        for (final CSVWriter writer : Arrays.asList(completed, rejected)) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class Mapping {
+
+        private final String from;
+
+        private final String to;
+
+        private final String uri;
+
+        // Prefix currently holding the URI
+        private String source;
+
+        private int calls = 0;
+
+        private long nanos = 0;
+
+        private Mapping(final String from, final String to, final String source, final String uri) {
+            this.from = from;
+            this.to = to;
+            this.source = source;
+            this.uri = uri;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+
+import com.opencsv.CSVWriter;
+
+/**
+ * Rows whose resource query timed out or failed, held back so one slow or broken nodetype does
+ * not stall or silently drop from a run. Each failure is written to the quarantine CSV with the
+ * time the query took, and the rows are handed back once for a retry at the end of the run. The
+ * CSV starts with the input columns, so it can be the input of a later run, and is only created
+ * when something is quarantined.
+ **/
+public class QueryQuarantine<I> implements AutoCloseable {
+
+    private static final Logger LOGGER = getLogger(QueryQuarantine.class);
+
+    private static final String[] HEADER = {"namespace", "namespaceUri", "nodeType", "resource", "attempt", "millis",
+        "error"};
+
+    private final String path;
+
+    private final List<Entry<I>> entries = new ArrayList<Entry<I>>();
+
+    private CSVWriter writer;
+
+    private volatile boolean retrying = false;
+
+    private long quarantined = 0;
+
+    private long failedRetries = 0;
+
+    public QueryQuarantine(final String path) {
+        this.path = path;
+    }
+
+    /**
+     * Quarantine a row after its query failed, called from any worker
+     *
+     * @param input the row as submitted, handed back for the retry
+     * @param data the row's namespace, namespace URI, nodetype and resource
+     * @param millis how long the query ran before it failed
+     * @param error why it failed
+     **/
+    public synchronized void add(final I input, final String[] data, final long millis, final Exception error) {
+        LOGGER.warn("Quarantining " + data[2] + " after " + millis + "ms" + (retrying ? " on retry" : "") + ": "
+                + error.getMessage());
+        if (retrying) {
+            failedRetries++;
+        } else {
+            entries.add(new Entry<I>(input, data));
+            quarantined++;
+        }
+        try {
+            if (writer == null) {
+                writer = new CSVWriter(new FileWriter(path));
+                writer.writeNext(HEADER);
+            }
+            writer.writeNext(new String[] {data[0], data[1], data[2], data[3], retrying ? "retry" : "first",
+                String.valueOf(millis), String.valueOf(error.getMessage())});
+            writer.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Hold back a row an earlier, interrupted run quarantined, for the retry at the end of this run.
+     * It is already in that run's quarantine CSV.
+     **/
+    public synchronized void resume(final I input, final String[] data) {
+        entries.add(new Entry<I>(input, data));
+        quarantined++;
+    }
+
+    /**
+     * Take the quarantined rows for their retry, a row failing again is recorded but not held back
+     **/
+    public synchronized List<Entry<I>> startRetry() {
+        retrying = true;
+        final List<Entry<I>> retries = new ArrayList<Entry<I>>(entries);
+        entries.clear();
+        return retries;
+    }
+
+    /**
+     * Whether a failure now is final, the row has had its retry
+     **/
+    public boolean isRetrying() {
+        return retrying;
+    }
+
+    public synchronized long getFailedRetries() {
+        return failedRetries;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        writer.close();
+        LOGGER.info("Quarantined " + quarantined + " nodetype queries, " + (quarantined - failedRetries)
+                + " recovered on retry, see " + path);
+    }
+
+    /**
+     * A quarantined row
+     **/
+    public static class Entry<I> {
+
+        final I input;
+
+        final String[] data;
+
+        private Entry(final I input, final String[] data) {
+            this.input = input;
+            this.data = data;
+        }
+    }
+}
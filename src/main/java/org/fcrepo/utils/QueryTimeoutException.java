@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * A resource query that ran past its deadline. Whatever it returned before it was cancelled is
+ * incomplete and must not be taken as the answer.
+ **/
+public class QueryTimeoutException extends RepositoryException {
+
+    private static final long serialVersionUID = 1L;
+
+    public QueryTimeoutException(final String nodeType, final long millis) {
+        super("Query for " + nodeType + " ran past its " + millis + "ms deadline");
+    }
+
+    public QueryTimeoutException(final String nodeType, final long millis, final Throwable cause) {
+        super("Query for " + nodeType + " ran past its " + millis + "ms deadline", cause);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.query.Query;
+
+import org.slf4j.Logger;
+
+/**
+ * Puts a deadline on each resource query and cancels the query once it passes. The deadline is
+ * either fixed, or adapts to the run: a multiple of the average query latency so far, kept between
+ * a floor and a ceiling. One daemon thread watches the queries of every worker.
+ **/
+public class QueryWatchdog implements AutoCloseable {
+
+    private static final Logger LOGGER = getLogger(QueryWatchdog.class);
+
+    // Queries timed before the average is trusted, until then the ceiling applies
+    private static final long WARMUP_QUERIES = 20;
+
+    private final long fixedMillis;
+
+    private final double factor;
+
+    private final long minMillis;
+
+    private final long maxMillis;
+
+    private final ScheduledExecutorService scheduler;
+
+    // Budget replacing the usual deadline, for retries, 0 when not set
+    private volatile long overrideMillis = 0;
+
+    /**
+     * @param fixedMillis deadline of every query, 0 to adapt it to the average latency
+     * @param factor multiple of the average latency an adaptive deadline allows
+     * @param minMillis shortest adaptive deadline
+     * @param maxMillis longest adaptive deadline, and the deadline until enough queries have been timed
+     **/
+    public QueryWatchdog(final long fixedMillis, final double factor, final long minMillis, final long maxMillis) {
+        this.fixedMillis = fixedMillis;
+        this.factor = factor;
+        this.minMillis = minMillis;
+        this.maxMillis = Math.max(minMillis, maxMillis);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "query-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Configure the deadlines from the query.timeout.* system properties
+     **/
+    public static QueryWatchdog fromProperties() {
+        return new QueryWatchdog(
+                Long.getLong("query.timeout.millis", 0L),
+                Double.parseDouble(System.getProperty("query.timeout.factor", "10")),
+                Long.getLong("query.timeout.min.millis", 5000L),
+                Long.getLong("query.timeout.max.millis", 60000L));
+    }
+
+    /**
+     * Deadline for the next query, given the timer of the queries run so far
+     **/
+    public long budgetMillis(final RunMetrics.Timer queryTimer) {
+        if (overrideMillis > 0) {
+            return overrideMillis;
+        }
+        if (fixedMillis > 0) {
+            return fixedMillis;
+        }
+        if (queryTimer.getCount() < WARMUP_QUERIES) {
+            return maxMillis;
+        }
+        return Math.min(maxMillis, Math.max(minMillis, (long) (queryTimer.averageMillis() * factor)));
+    }
+
+    /**
+     * Replace the usual deadline with a fixed budget, e.g. while retrying, 0 to go back to it
+     **/
+    public void setOverrideMillis(final long overrideMillis) {
+        this.overrideMillis = overrideMillis;
+    }
+
+    /**
+     * Start watching a query that is about to run
+     **/
+    public Deadline arm(final Query query, final long millis) {
+        final Deadline deadline = new Deadline(millis);
+        deadline.future = scheduler.schedule(() -> deadline.expire(query), millis, TimeUnit.MILLISECONDS);
+        return deadline;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * The deadline of one running query
+     **/
+    public static class Deadline {
+
+        private final long millis;
+
+        private volatile boolean expired = false;
+
+        private ScheduledFuture<?> future;
+
+        private Deadline(final long millis) {
+            this.millis = millis;
+        }
+
+        // ModeShape queries can be cancelled while they execute, any other query only has its result discarded
+        private void expire(final Query query) {
+            expired = true;
+            if (query instanceof org.modeshape.jcr.api.query.Query) {
+                final boolean cancelled = ((org.modeshape.jcr.api.query.Query) query).cancel();
+                LOGGER.debug("Query past its " + millis + "ms deadline, cancelled: " + cancelled);
+            }
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * Stop watching the query once it has finished
+         **/
+        public void disarm() {
+            future.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeTypeIterator;
+import javax.jcr.nodetype.NodeTypeManager;
+
+import org.slf4j.Logger;
+
+/**
+ * Snapshot of the spurious part of the namespace and nodetype registries, taken once per run and
+ * kept up to date as the run unregisters entries. Each namespace gets an int id: for a canonical
+ * "nsNNN" prefix the id is NNN itself, any other prefix is given an id past the numeric range
+ * through a string lookup. Registration state lives in BitSets and the namespace URI nesting in
+ * int arrays indexed by id, so 100k+ prefixes cost a few arrays rather than maps of strings.
+ *
+ * Tracked are the "ns" prefixes, any prefix with a tx: URI, and the spurious nodetypes. A
+ * spurious nodetype named "prefix:None" is a single bit; any other spurious nodetype name falls
+ * back to a string set.
+ **/
+public class RegistrySnapshot {
+
+    private static final Logger LOGGER = getLogger(RegistrySnapshot.class);
+
+    private static final String PREFIX_BASE = "ns";
+
+    private static final String NODE_TYPE_SUFFIX = ":None";
+
+    // Numeric ids beyond this many per namespace, plus slack, would mostly be empty array slots
+    private static final int SPARSENESS = 4;
+
+    private static final int MIN_NUMERIC_LIMIT = 1 << 20;
+
+    private static final int NO_PARENT = -1;
+
+    // Ids below the limit are numeric "nsNNN" prefixes, ids from the limit on are the string fallback
+    private final int numericLimit;
+
+    private final Map<String, Integer> fallbackIds = new HashMap<String, Integer>();
+
+    private final List<String> fallbackPrefixes = new ArrayList<String>();
+
+    private final String[] uris;
+
+    private final BitSet namespaceRegistered = new BitSet();
+
+    private final BitSet nodeTypeRegistered = new BitSet();
+
+    private final BitSet hasResources = new BitSet();
+
+    // Still taking part in the URI nesting, cleared once a namespace is removed from it
+    private final BitSet linked = new BitSet();
+
+    // Nearest linked namespace whose URI this one is nested below, and how many are nested below this one
+    private final int[] parent;
+
+    private final int[] childCount;
+
+    private final Set<String> otherNodeTypes = new HashSet<String>();
+
+    // Spurious nodetypes whose prefix has no registered namespace
+    private final List<String> orphanNodeTypes = new ArrayList<String>();
+
+    private RegistrySnapshot(final String[] prefixes, final int numericLimit) {
+        this.numericLimit = numericLimit;
+        for (final String prefix : prefixes) {
+            if (numericId(prefix) < 0) {
+                fallbackIds.put(prefix, numericLimit + fallbackPrefixes.size());
+                fallbackPrefixes.add(prefix);
+            }
+        }
+        final int size = numericLimit + fallbackPrefixes.size();
+        uris = new String[size];
+        parent = new int[size];
+        childCount = new int[size];
+        Arrays.fill(parent, NO_PARENT);
+    }
+
+    /**
+     * Read the registries once
+     *
+     * @param namespaceRegistry source of the namespaces
+     * @param nodeTypeManager source of the nodetypes
+     * @param spuriousNodeType which nodetype names are spurious
+     **/
+    public static RegistrySnapshot take(final NamespaceRegistry namespaceRegistry,
+            final NodeTypeManager nodeTypeManager, final Predicate<String> spuriousNodeType)
+            throws RepositoryException {
+        final long start = System.currentTimeMillis();
+
+        final List<String> prefixes = new ArrayList<String>();
+        final List<String> prefixUris = new ArrayList<String>();
+        for (final String prefix : namespaceRegistry.getPrefixes()) {
+            final String uri = namespaceRegistry.getURI(prefix);
+            if (prefix.startsWith(PREFIX_BASE) || uri.contains("tx:")) {
+                prefixes.add(prefix);
+                prefixUris.add(uri);
+            }
+        }
+
+        int maxNumericId = -1;
+        for (final String prefix : prefixes) {
+            maxNumericId = Math.max(maxNumericId, parseNumericId(prefix));
+        }
+        final long sparseLimit = Math.max(MIN_NUMERIC_LIMIT, (long) SPARSENESS * prefixes.size());
+        final int numericLimit = (int) Math.min(sparseLimit, maxNumericId + 1L);
+
+        final RegistrySnapshot snapshot = new RegistrySnapshot(prefixes.toArray(new String[prefixes.size()]),
+                numericLimit);
+        for (int i = 0; i < prefixes.size(); i++) {
+            final int id = snapshot.idOf(prefixes.get(i));
+            snapshot.uris[id] = prefixUris.get(i);
+            snapshot.namespaceRegistered.set(id);
+        }
+        snapshot.linkUris();
+
+        final NodeTypeIterator nodeTypes = nodeTypeManager.getAllNodeTypes();
+        while (nodeTypes.hasNext()) {
+            final String name = nodeTypes.nextNodeType().getName();
+            if (!spuriousNodeType.test(name)) {
+                continue;
+            }
+            final int separator = name.indexOf(':');
+            final int id = separator < 0 ? -1 : snapshot.idOf(name.substring(0, separator));
+            if (id >= 0 && name.endsWith(NODE_TYPE_SUFFIX) && separator == name.length() - NODE_TYPE_SUFFIX.length()) {
+                snapshot.nodeTypeRegistered.set(id);
+            } else {
+                snapshot.otherNodeTypes.add(name);
+                if (id < 0) {
+                    LOGGER.info("No matching namespace for NodeType: " + name);
+                    snapshot.orphanNodeTypes.add(name);
+                }
+            }
+        }
+
+        LOGGER.info("Took registry snapshot of " + snapshot.namespaceRegistered.cardinality() + " namespaces ("
+                + snapshot.fallbackPrefixes.size() + " non-numeric) and " + snapshot.getNodeTypeCount()
+                + " spurious nodetypes in " + (System.currentTimeMillis() - start) + "ms");
+        return snapshot;
+    }
+
+    // Work out the URI nesting once with a trie, then keep only the int links
+    private void linkUris() {
+        final NamespaceUriTrie trie = new NamespaceUriTrie();
+        final Map<String, Integer> idsByUri = new HashMap<String, Integer>();
+        for (int id = namespaceRegistered.nextSetBit(0); id >= 0; id = namespaceRegistered.nextSetBit(id + 1)) {
+            if (uris[id].contains("tx:")) {
+                trie.add(uris[id]);
+                idsByUri.put(uris[id], id);
+                linked.set(id);
+            }
+        }
+        for (int id = linked.nextSetBit(0); id >= 0; id = linked.nextSetBit(id + 1)) {
+            final String parentUri = trie.getParent(uris[id]);
+            if (parentUri != null) {
+                parent[id] = idsByUri.get(parentUri);
+                childCount[parent[id]]++;
+            }
+        }
+    }
+
+    // Id of a canonical "nsNNN" prefix, or -1
+    static int parseNumericId(final String prefix) {
+        final int length = prefix.length();
+        if (length <= PREFIX_BASE.length() || length > PREFIX_BASE.length() + 9 || !prefix.startsWith(PREFIX_BASE)) {
+            return -1;
+        }
+        // Leading zeros would let ns01 and ns1 share an id
+        if (prefix.charAt(PREFIX_BASE.length()) == '0' && length > PREFIX_BASE.length() + 1) {
+            return -1;
+        }
+        int id = 0;
+        for (int i = PREFIX_BASE.length(); i < length; i++) {
+            final char c = prefix.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    private int numericId(final String prefix) {
+        final int id = parseNumericId(prefix);
+        return id < numericLimit ? id : -1;
+    }
+
+    /**
+     * Get the id of a tracked prefix, or -1
+     **/
+    public int idOf(final String prefix) {
+        final int id = numericId(prefix);
+        if (id >= 0) {
+            return id;
+        }
+        final Integer fallbackId = fallbackIds.get(prefix);
+        return fallbackId == null ? -1 : fallbackId;
+    }
+
+    public String getPrefix(final int id) {
+        return id < numericLimit ? PREFIX_BASE + id : fallbackPrefixes.get(id - numericLimit);
+    }
+
+    /**
+     * Get the URI the namespace had when the snapshot was taken
+     **/
+    public String getUri(final int id) {
+        return uris[id];
+    }
+
+    /**
+     * Next id at or after the given one whose namespace is registered, or -1
+     **/
+    public int nextRegistered(final int fromId) {
+        return namespaceRegistered.nextSetBit(fromId);
+    }
+
+    public int getNamespaceCount() {
+        return namespaceRegistered.cardinality();
+    }
+
+    public int getNodeTypeCount() {
+        return nodeTypeRegistered.cardinality() + otherNodeTypes.size();
+    }
+
+    public boolean isNamespaceRegistered(final String prefix) {
+        final int id = idOf(prefix);
+        return id >= 0 && namespaceRegistered.get(id);
+    }
+
+    public void namespaceUnregistered(final String prefix) {
+        final int id = idOf(prefix);
+        if (id >= 0) {
+            namespaceRegistered.clear(id);
+        }
+    }
+
+    /**
+     * Get the spurious nodetypes registered under the namespace
+     **/
+    public List<String> getNodeTypes(final int id) {
+        final List<String> nodeTypes = new ArrayList<String>(1);
+        final String prefix = getPrefix(id);
+        if (nodeTypeRegistered.get(id)) {
+            nodeTypes.add(prefix + NODE_TYPE_SUFFIX);
+        }
+        if (!otherNodeTypes.isEmpty()) {
+            for (final String nodeType : otherNodeTypes) {
+                if (nodeType.startsWith(prefix + ":")) {
+                    nodeTypes.add(nodeType);
+                }
+            }
+        }
+        return nodeTypes;
+    }
+
+    /**
+     * Get the spurious nodetypes whose prefix has no registered namespace
+     **/
+    public List<String> getOrphanNodeTypes() {
+        return Collections.unmodifiableList(orphanNodeTypes);
+    }
+
+    /**
+     * Get every spurious nodetype still registered
+     **/
+    public List<String> getAllNodeTypes() {
+        final List<String> nodeTypes = new ArrayList<String>(getNodeTypeCount());
+        for (int id = nodeTypeRegistered.nextSetBit(0); id >= 0; id = nodeTypeRegistered.nextSetBit(id + 1)) {
+            nodeTypes.add(getPrefix(id) + NODE_TYPE_SUFFIX);
+        }
+        nodeTypes.addAll(otherNodeTypes);
+        return nodeTypes;
+    }
+
+    public boolean isNodeTypeRegistered(final String nodeType) {
+        final int id = nodeTypeId(nodeType);
+        return id >= 0 ? nodeTypeRegistered.get(id) : otherNodeTypes.contains(nodeType);
+    }
+
+    public void nodeTypeUnregistered(final String nodeType) {
+        final int id = nodeTypeId(nodeType);
+        if (id >= 0) {
+            nodeTypeRegistered.clear(id);
+        } else {
+            otherNodeTypes.remove(nodeType);
+            orphanNodeTypes.remove(nodeType);
+        }
+    }
+
+    // Id whose "prefix:None" bit stands for the nodetype, or -1 when it is kept by name
+    private int nodeTypeId(final String nodeType) {
+        if (!nodeType.endsWith(NODE_TYPE_SUFFIX)) {
+            return -1;
+        }
+        final String prefix = nodeType.substring(0, nodeType.length() - NODE_TYPE_SUFFIX.length());
+        return prefix.indexOf(':') < 0 ? idOf(prefix) : -1;
+    }
+
+    /**
+     * Whether any namespace URI still linked is nested below this namespace's URI
+     **/
+    public boolean hasChildNamespaces(final String prefix) {
+        final int id = idOf(prefix);
+        return id >= 0 && childCount[id] > 0;
+    }
+
+    /**
+     * Take the namespace out of the URI nesting. Namespaces nested below it move up to its parent.
+     **/
+    public void unlink(final String prefix) {
+        final int id = idOf(prefix);
+        if (id < 0 || !linked.get(id)) {
+            return;
+        }
+        linked.clear(id);
+        final int parentId = parent[id];
+        if (parentId != NO_PARENT) {
+            childCount[parentId]--;
+        }
+        // Cleanup goes leaves first, so this scan is only reached for the odd out-of-order removal
+        if (childCount[id] > 0) {
+            for (int child = linked.nextSetBit(0); child >= 0; child = linked.nextSetBit(child + 1)) {
+                if (parent[child] == id) {
+                    parent[child] = parentId;
+                    if (parentId != NO_PARENT) {
+                        childCount[parentId]++;
+                    }
+                }
+            }
+            childCount[id] = 0;
+        }
+        parent[id] = NO_PARENT;
+    }
+
+    /**
+     * Record that resources were found using the namespace's nodetypes
+     **/
+    public void setHasResources(final String prefix, final boolean found) {
+        final int id = idOf(prefix);
+        if (id >= 0) {
+            hasResources.set(id, found);
+        }
+    }
+
+    public boolean hasResources(final String prefix) {
+        final int id = idOf(prefix);
+        return id >= 0 && hasResources.get(id);
+    }
+
+    public int getHasResourcesCount() {
+        return hasResources.cardinality();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.modeshape.jcr.JcrRepository;
+import org.modeshape.jcr.ModeShapeEngine;
+import org.modeshape.jcr.RepositoryConfiguration;
+import org.modeshape.schematic.document.Editor;
+import org.slf4j.Logger;
+
+/**
+ * Starts the ModeShape repository on its own, without the fcrepo Spring context. Only the engine
+ * and the repository described by the configuration are started; the fcrepo kernel, its event
+ * listeners and the HTTP layer are not. Features the command has no use for are switched off in
+ * the configuration before it is deployed.
+ **/
+public class RepositoryBootstrap implements AutoCloseable {
+
+    private static final Logger LOGGER = getLogger(RepositoryBootstrap.class);
+
+    // Nothing listens to repository events in this process, so a minimal ring buffer is enough
+    private static final int EVENT_BUS_SIZE = 16;
+
+    private final ModeShapeEngine engine = new ModeShapeEngine();
+
+    private JcrRepository repository;
+
+    /**
+     * Read the configuration, trim it and start the repository
+     *
+     * @param configuration location of the repository.json, as a URL, a "classpath:" resource or a file path
+     * @param queryIndexes whether the command runs queries and should keep the configured indexes
+     **/
+    public static RepositoryBootstrap start(final String configuration, final boolean queryIndexes)
+            throws RepositoryException {
+        final long start = System.currentTimeMillis();
+        final RepositoryBootstrap bootstrap = new RepositoryBootstrap();
+        try {
+            final RepositoryConfiguration config = trim(read(configuration), queryIndexes);
+            bootstrap.engine.start();
+            bootstrap.repository = bootstrap.engine.deploy(config);
+            bootstrap.engine.startRepository(config.getName()).get();
+        } catch (RepositoryException e) {
+            bootstrap.close();
+            throw e;
+        } catch (Exception e) {
+            bootstrap.close();
+            throw new RepositoryException("Unable to start repository from " + configuration, e);
+        }
+        LOGGER.info("Started repository (fast start) in " + (System.currentTimeMillis() - start) + "ms");
+        return bootstrap;
+    }
+
+    private static RepositoryConfiguration read(final String configuration) throws Exception {
+        if (configuration.startsWith("classpath:")) {
+            final String resource = configuration.substring("classpath:".length());
+            final URL url = RepositoryBootstrap.class.getResource(resource.startsWith("/") ? resource : "/" + resource);
+            if (url == null) {
+                throw new RepositoryException("No such classpath resource: " + resource);
+            }
+            return RepositoryConfiguration.read(url);
+        }
+        try {
+            return RepositoryConfiguration.read(new URL(configuration));
+        } catch (MalformedURLException e) {
+            return RepositoryConfiguration.read(configuration);
+        }
+    }
+
+    // Drop what the utility never uses: sequencers, text extraction and monitoring, and the query
+    // indexes when the command runs no queries, so they are neither started nor rebuilt
+    private static RepositoryConfiguration trim(final RepositoryConfiguration config, final boolean queryIndexes) {
+        final Editor editor = config.edit();
+        editor.remove("sequencing");
+        editor.remove("textExtraction");
+        editor.getOrCreateDocument("monitoring").setBoolean("enabled", false);
+        editor.setNumber("eventBusSize", EVENT_BUS_SIZE);
+        if (! queryIndexes) {
+            editor.remove("indexes");
+            editor.remove("indexProviders");
+            LOGGER.info("Query indexes disabled for this command");
+        }
+        return new RepositoryConfiguration(editor, config.getName());
+    }
+
+    /**
+     * Sessions for the main thread and the workers
+     **/
+    public Supplier<Session> sessions() {
+        return () -> {
+            try {
+                return repository.login();
+            } catch (RepositoryException e) {
+                throw new IllegalStateException("Unable to log in to the repository", e);
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        try {
+            engine.shutdown().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+
+/**
+ * Removes the spurious nodetypes from resources through the fcrepo REST API, replacing
+ * scripts/nodetype-cleanup-patch.py. All of the types on one resource are removed by a single
+ * SPARQL PATCH. Requests run concurrently over pooled keep-alive connections, paced by an
+ * {@link AdaptiveRateLimiter}.
+ *
+ * Each request is recorded in a journal as sent before it goes out, then as done once a 2xx
+ * response arrives or as failed on any other outcome. Failed requests are also written to a
+ * failed CSV. A restart skips every done resource and sends the failed ones again. A resource
+ * that was sent but never answered is not sent again, it is listed in an uncertain CSV for review
+ * instead.
+ **/
+public class ResourcePatcher implements AutoCloseable {
+
+    private static final Logger LOGGER = getLogger(ResourcePatcher.class);
+
+    private static final String SENT = "S";
+
+    private static final String DONE = "D";
+
+    private static final String FAILED = "F";
+
+    private static final String[] HEADER = {"Request URI", "SPARQL Data", "Response Code", "Request Time"};
+
+    private static final ContentType SPARQL_UPDATE = ContentType.create("application/sparql-update", UTF_8);
+
+    private final String baseUrl;
+
+    private final String authToken;
+
+    private final int concurrency;
+
+    private final int retries;
+
+    private final boolean dryRun;
+
+    private final boolean resendUncertain;
+
+    private final AdaptiveRateLimiter rateLimiter;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * @param baseUrl fcrepo REST endpoint that repository paths are appended to
+     * @param authToken bearer token, may be null for a dry run
+     * @param concurrency requests in flight at once, and pooled connections
+     * @param retries extra attempts for a request answered with a 429 or 5xx, or not answered at all
+     * @param dryRun record the requests without sending them
+     * @param resendUncertain send requests again whose outcome a previous run did not record
+     * @param rateLimiter pacing of the requests
+     * @param timeoutMillis connect and read timeout
+     **/
+    public ResourcePatcher(final String baseUrl, final String authToken, final int concurrency, final int retries,
+            final boolean dryRun, final boolean resendUncertain, final AdaptiveRateLimiter rateLimiter,
+            final int timeoutMillis) {
+        this.baseUrl = baseUrl.replaceAll("/+$", "");
+        this.authToken = authToken;
+        this.concurrency = Math.max(1, concurrency);
+        this.retries = Math.max(0, retries);
+        this.dryRun = dryRun;
+        this.resendUncertain = resendUncertain;
+        this.rateLimiter = rateLimiter;
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(this.concurrency);
+        connectionManager.setDefaultMaxPerRoute(this.concurrency);
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeoutMillis)
+                        .setSocketTimeout(timeoutMillis)
+                        .build())
+                .build();
+    }
+
+    /**
+     * Create a patcher from the fcrepo.rest.endpoint, patch.concurrency, patch.retries,
+     * patch.rate, patch.rate.min, patch.rate.max, patch.timeout.millis, patch.resend.uncertain
+     * and dryrun properties, and the AUTH_TOKEN environment variable
+     **/
+    public static ResourcePatcher fromProperties() {
+        final boolean dryRun = Boolean.parseBoolean(System.getProperty("dryrun"));
+        final String authToken = System.getenv("AUTH_TOKEN");
+        if (authToken == null && !dryRun) {
+            System.err.println("AUTH_TOKEN=<bearer token> java ...");
+            System.exit(2);
+        }
+        final double rate = Double.parseDouble(System.getProperty("patch.rate", "10"));
+        return new ResourcePatcher(
+                System.getProperty("fcrepo.rest.endpoint", "http://fcrepo-local:8080/fcrepo/rest"),
+                authToken,
+                Integer.getInteger("patch.concurrency", 4),
+                Integer.getInteger("patch.retries", 3),
+                dryRun,
+                Boolean.parseBoolean(System.getProperty("patch.resend.uncertain")),
+                new AdaptiveRateLimiter(rate,
+                        Double.parseDouble(System.getProperty("patch.rate.min", "0.5")),
+                        Double.parseDouble(System.getProperty("patch.rate.max", Double.toString(rate * 4))),
+                        Integer.getInteger("patch.concurrency", 4)),
+                Integer.getInteger("patch.timeout.millis", 60000));
+    }
+
+    /**
+     * PATCH every resource in the CSV or work file, writing the 2xx responses to
+     * <file>-<timestamp>-patch-completed.csv and any other outcome to
+     * <file>-<timestamp>-patch-failed.csv. Patched work file rows are flagged in place.
+     **/
+    public void patch(final String filepath) throws IOException {
+        try (WorkFile workFile = WorkFile.isWorkFile(filepath) ? WorkFile.open(filepath) : null) {
+            patch(filepath, workFile);
+        }
+    }
+
+    private void patch(final String filepath, final WorkFile workFile) throws IOException {
+        final String timestamp = new SimpleDateFormat("yyyyMMddHHmmss").format(Calendar.getInstance().getTime());
+        final String basePath = filepath.replaceFirst("(\\.[^./]*)?$", "");
+        final String dryRunSuffix = dryRun ? "-dryrun" : "";
+        final String completedFilePath = basePath + "-" + timestamp + "-patch-completed" + dryRunSuffix + ".csv";
+        final String failedFilePath = basePath + "-" + timestamp + "-patch-failed" + dryRunSuffix + ".csv";
+        final String uncertainFilePath = basePath + "-" + timestamp + "-patch-uncertain" + dryRunSuffix + ".csv";
+        final String journalFilePath = filepath + ".journal.patch" + dryRunSuffix;
+
+        final Map<String, List<String>> typesByResource = new LinkedHashMap<String, List<String>>();
+        final Map<String, List<Long>> rowsByResource = new HashMap<String, List<Long>>();
+        if (workFile == null) {
+            readTypesByResource(filepath, typesByResource);
+        } else {
+            readTypesByResource(workFile, typesByResource, rowsByResource);
+        }
+        final Set<String> sent = new HashSet<String>();
+        final Set<String> done = new HashSet<String>();
+        final Set<String> failed = new HashSet<String>();
+        readJournal(journalFilePath, sent, done, failed);
+        LOGGER.info(typesByResource.size() + " resources to patch, " + done.size() + " done by a previous run, "
+                + failed.size() + " failed and sent again, " + sent.size() + " with an unknown outcome");
+
+        final long start = System.currentTimeMillis();
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final Semaphore inFlight = new Semaphore(concurrency);
+        int requestCount = 0;
+        try (FileOutputStream journalStream = new FileOutputStream(journalFilePath, true);
+             CSVWriter completed = new CSVWriter(new FileWriter(completedFilePath));
+             CSVWriter failures = new CSVWriter(new FileWriter(failedFilePath))) {
+            completed.writeNext(HEADER);
+            failures.writeNext(HEADER);
+            CSVWriter uncertain = null;
+            try {
+                for (final Map.Entry<String, List<String>> entry : typesByResource.entrySet()) {
+                    final String requestUri = entry.getKey();
+                    if (done.contains(requestUri)) {
+                        continue;
+                    }
+                    final String sparql = deleteTypes(entry.getValue());
+                    if (sent.contains(requestUri) && !resendUncertain) {
+                        if (uncertain == null) {
+                            uncertain = new CSVWriter(new FileWriter(uncertainFilePath));
+                            uncertain.writeNext(new String[] {"Request URI", "SPARQL Data"});
+                        }
+                        uncertain.writeNext(new String[] {requestUri, sparql});
+                        continue;
+                    }
+
+                    inFlight.acquire();
+                    rateLimiter.acquire();
+                    journal(journalStream, SENT, requestUri, null);
+                    requestCount++;
+                    executor.submit(() -> {
+                        try {
+                            final String requestTime = new SimpleDateFormat("yyyyMMddHHmmss")
+                                    .format(Calendar.getInstance().getTime());
+                            final int status = dryRun ? -1 : send(requestUri, sparql);
+                            // Only a 2xx is done, anything else is sent again by the next run
+                            final boolean succeeded = dryRun || status >= 200 && status < 300;
+                            final CSVWriter outcome = succeeded ? completed : failures;
+                            synchronized (outcome) {
+                                outcome.writeNext(new String[] {requestUri, sparql,
+                                        status < 0 ? "" : Integer.toString(status), requestTime});
+                                outcome.flush();
+                            }
+                            journal(journalStream, succeeded ? DONE : FAILED, requestUri, Integer.toString(status));
+                            if (workFile != null && succeeded && ! dryRun) {
+                                for (final long row : rowsByResource.get(requestUri)) {
+                                    workFile.setFlags(row, WorkFile.PATCHED);
+                                }
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            LOGGER.error("  Unable to record PATCH of " + requestUri, e);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                    if (requestCount % 100 == 0) {
+                        LOGGER.info("  Sent " + requestCount + " requests, rate "
+                                + String.format("%.2f", rateLimiter.getRate()) + " requests/s");
+                    }
+                }
+
+                executor.shutdown();
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    LOGGER.debug("  Waiting for " + (concurrency - inFlight.availablePermits()) + " requests");
+                }
+            } finally {
+                if (uncertain != null) {
+                    uncertain.close();
+                    LOGGER.warn("Resources sent by a previous run without a recorded response written to "
+                            + uncertainFilePath + ", run with -Dpatch.resend.uncertain=true to send them again");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while patching", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        LOGGER.info("Sent " + requestCount + " requests in " + (System.currentTimeMillis() - start) + "ms");
+        LOGGER.info("Requests completed. Results written to " + completedFilePath + ", failures to "
+                + failedFilePath);
+    }
+
+    /**
+     * Group the spurious nodetypes of the CSV rows by request URI, in order of first appearance.
+     * Rows without a resource are skipped.
+     **/
+    void readTypesByResource(final String filepath, final Map<String, List<String>> typesByResource)
+            throws IOException {
+        try (CSVReader reader = new CSVReader(new FileReader(filepath))) {
+            // Skip header row
+            reader.skip(1);
+
+            final Iterator<String[]> csvRowIterator = reader.iterator();
+            while (csvRowIterator.hasNext()) {
+                addRow(csvRowIterator.next(), typesByResource);
+            }
+        }
+    }
+
+    /**
+     * Group the work file rows the same way, also recording which rows each request covers.
+     * Rows already patched are skipped.
+     **/
+    void readTypesByResource(final WorkFile workFile, final Map<String, List<String>> typesByResource,
+            final Map<String, List<Long>> rowsByResource) throws IOException {
+        for (long row = 0; row < workFile.getRowCount(); row++) {
+            if ((workFile.getFlags(row) & WorkFile.PATCHED) != 0) {
+                continue;
+            }
+            final String requestUri = addRow(workFile.getRow(row), typesByResource);
+            if (requestUri != null) {
+                rowsByResource.computeIfAbsent(requestUri, k -> new ArrayList<Long>(1)).add(row);
+            }
+        }
+    }
+
+    // Returns the request URI the row was added to, or null for a row without a resource
+    private String addRow(final String[] data, final Map<String, List<String>> typesByResource) {
+        final String resource = data[3].trim();
+        if (resource.isEmpty()) {
+            LOGGER.debug("  Skipping: " + data[0] + " without resource.");
+            return null;
+        }
+        final String path = resource.replace("jcr:content", "fcr:metadata");
+        final String requestUri = path.startsWith("http") ? path : baseUrl + path;
+        List<String> types = typesByResource.get(requestUri);
+        if (types == null) {
+            types = new ArrayList<String>(1);
+            typesByResource.put(requestUri, types);
+        }
+        final String type = data[1] + "None";
+        if (!types.contains(type)) {
+            types.add(type);
+        }
+        return requestUri;
+    }
+
+    /**
+     * Build a single DELETE DATA removing all of the types from the resource
+     **/
+    static String deleteTypes(final List<String> types) {
+        final StringBuilder sparql = new StringBuilder("DELETE DATA { ");
+        for (int i = 0; i < types.size(); i++) {
+            if (i > 0) {
+                sparql.append(" . ");
+            }
+            sparql.append("<> a <").append(types.get(i)).append(">");
+        }
+        return sparql.append(" }").toString();
+    }
+
+    // Returns the final status, 0 when no response was received at all
+    private int send(final String requestUri, final String sparql) {
+        int status = 0;
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            if (attempt > 0) {
+                try {
+                    rateLimiter.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return status;
+                }
+            }
+            final HttpPatch patch = new HttpPatch(requestUri);
+            patch.setHeader("Authorization", "Bearer " + authToken);
+            patch.setEntity(new StringEntity(sparql, SPARQL_UPDATE));
+            final long start = System.currentTimeMillis();
+            try (CloseableHttpResponse response = httpClient.execute(patch)) {
+                status = response.getStatusLine().getStatusCode();
+                EntityUtils.consume(response.getEntity());
+            } catch (IOException e) {
+                LOGGER.warn("  PATCH of " + requestUri + " failed: " + e.getMessage());
+                status = 0;
+            }
+            rateLimiter.onResponse(status, System.currentTimeMillis() - start);
+            if (status != 0 && status != 429 && status < 500) {
+                break;
+            }
+        }
+        LOGGER.debug("  " + status + " " + requestUri);
+        return status;
+    }
+
+    // Replay the journal in order: the last record of a resource decides whether it is done, failed, or
+    // sent with an unknown outcome
+    private static void readJournal(final String journalFilePath, final Set<String> sent, final Set<String> done,
+            final Set<String> failed) throws IOException {
+        if (!new File(journalFilePath).isFile()) {
+            return;
+        }
+        LOGGER.info("Resuming from journal " + journalFilePath);
+        try (BufferedReader reader = new BufferedReader(new FileReader(journalFilePath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // A torn last line from a crash mid-write has no tab, or an unknown marker
+                final String[] fields = line.split("\t");
+                if (fields.length < 2) {
+                    continue;
+                }
+                if (SENT.equals(fields[0])) {
+                    sent.add(fields[1]);
+                    failed.remove(fields[1]);
+                } else if (DONE.equals(fields[0]) && fields.length > 2) {
+                    sent.remove(fields[1]);
+                    done.add(fields[1]);
+                } else if (FAILED.equals(fields[0]) && fields.length > 2) {
+                    sent.remove(fields[1]);
+                    failed.add(fields[1]);
+                }
+            }
+        }
+    }
+
+    // Synced line by line, a request is only sent once its intent is on disk
+    private static void journal(final FileOutputStream journalStream, final String marker, final String requestUri,
+            final String status) throws IOException {
+        final String line = marker + "\t" + requestUri + (status == null ? "" : "\t" + status) + "\n";
+        synchronized (journalStream) {
+            journalStream.write(line.getBytes(UTF_8));
+            journalStream.getFD().sync();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+        connectionManager.shutdown();
+    }
+}
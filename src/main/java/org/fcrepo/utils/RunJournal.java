@@ -0,0 +1,431 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+
+import com.opencsv.CSVWriter;
+
+/**
+ * Append-only journal of processed input rows, written together with long-lived buffered CSV
+ * outputs. Rows are committed in groups: every N rows or T milliseconds the outputs are flushed
+ * and synced, then the highest contiguous processed row number is appended to the journal and
+ * synced. A restart resumes directly after the last committed row.
+ *
+ * A row may be left unmarked for a while, e.g. while it waits in a batch. Commits then stop at
+ * the last point where every output held exactly the rows up to the processed one, and a restart
+ * processes everything after that point again. A row put off until later, e.g. for a retry at the
+ * end of the run, is deferred instead: it counts as processed for the commit, and is journaled as
+ * deferred until it is processed, so a restart hands back exactly the deferred rows.
+ **/
+public class RunJournal implements AutoCloseable {
+
+    private static final Logger LOGGER = getLogger(RunJournal.class);
+
+    private static final String COMPLETE = "complete";
+
+    private final String journalPath;
+
+    private final int commitRows;
+
+    private final long commitMillis;
+
+    private final FileOutputStream journalStream;
+
+    private final BufferedWriter journalWriter;
+
+    private final List<Output> outputs = new ArrayList<Output>();
+
+    // Output lengths recorded by the last commit of a previous run, by file name
+    private final Map<String, Long> committedLengths = new HashMap<String, Long>();
+
+    // Rows processed out of order, relative to the committed sequence
+    private final BitSet processedAhead = new BitSet();
+
+    // Deferred rows not processed yet, from previous runs and this one
+    private final SortedSet<Long> deferred = new TreeSet<Long>();
+
+    // Deferred rows as read back from a previous run
+    private final SortedSet<Long> resumedDeferred = new TreeSet<Long>();
+
+    // Deferrals not journaled yet, each is journaled once the committed sequence covers it
+    private final SortedSet<Long> unjournaledDeferrals = new TreeSet<Long>();
+
+    // Deferred rows processed since, journaled once the output lengths include their rows
+    private final List<Long> resolvedAhead = new ArrayList<Long>();
+
+    private final List<Long> resolved = new ArrayList<Long>();
+
+    private long lastSequence = 0;
+
+    private long processedSequence = 0;
+
+    // Last processed row with no row after it written yet, and the output lengths at that point
+    private long consistentSequence = 0;
+
+    private final Map<Output, Long> consistentLengths = new HashMap<Output, Long>();
+
+    private boolean complete = false;
+
+    private int uncommittedRows = 0;
+
+    private long lastCommitTime = System.currentTimeMillis();
+
+    /**
+     * Open the journal, reading back the state left by any previous run
+     *
+     * @param journalPath path of the journal file
+     * @param commitRows commit after this many processed rows
+     * @param commitMillis commit when this much time has passed since the last commit
+     **/
+    public RunJournal(final String journalPath, final int commitRows, final long commitMillis) throws IOException {
+        this.journalPath = journalPath;
+        this.commitRows = Math.max(1, commitRows);
+        this.commitMillis = commitMillis;
+        readJournal();
+        resumedDeferred.addAll(deferred);
+        processedSequence = lastSequence;
+        consistentSequence = lastSequence;
+        journalStream = new FileOutputStream(journalPath, true);
+        journalWriter = new BufferedWriter(new OutputStreamWriter(journalStream));
+        if (lastSequence > 0 || complete) {
+            LOGGER.info("Resuming from journal " + journalPath + " after row " + lastSequence
+                    + (deferred.isEmpty() ? "" : ", " + deferred.size() + " deferred rows")
+                    + (complete ? " (complete)" : ""));
+        }
+    }
+
+    /**
+     * Open journal settings from the journal.commit.rows and journal.commit.millis properties
+     **/
+    public static RunJournal open(final String journalPath) throws IOException {
+        return new RunJournal(journalPath, Integer.getInteger("journal.commit.rows", 1000),
+                Long.getLong("journal.commit.millis", 1000L));
+    }
+
+    private void readJournal() throws IOException {
+        if (!new File(journalPath).isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(journalPath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (COMPLETE.equals(line)) {
+                    complete = true;
+                    continue;
+                }
+                // A torn line from a crash mid-write is ignored, the previous commit stands
+                try {
+                    final String[] fields = line.split("\t");
+                    final long sequence = Long.parseLong(fields[0]);
+                    final Map<String, Long> lengths = new HashMap<String, Long>();
+                    final List<Long> deferrals = new ArrayList<Long>();
+                    final List<Long> resolutions = new ArrayList<Long>();
+                    for (int i = 1; i < fields.length; i++) {
+                        if (fields[i].matches("[+-]\\d+")) {
+                            (fields[i].charAt(0) == '+' ? deferrals : resolutions)
+                                    .add(Long.parseLong(fields[i].substring(1)));
+                            continue;
+                        }
+                        final int separator = fields[i].lastIndexOf('=');
+                        lengths.put(fields[i].substring(0, separator),
+                                Long.parseLong(fields[i].substring(separator + 1)));
+                    }
+                    lastSequence = sequence;
+                    committedLengths.clear();
+                    committedLengths.putAll(lengths);
+                    deferred.addAll(deferrals);
+                    deferred.removeAll(resolutions);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Ignoring unreadable journal line: " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Open a CSV output for this run. A persistent output carries over between runs: it is cut back
+     * to its length at the last commit, so rows written after that commit are not duplicated. A
+     * non-persistent output is created new.
+     **/
+    public Output output(final String filepath, final boolean persistent, final String[] header)
+            throws IOException {
+        final String name = new File(filepath).getName();
+        final Long committedLength = persistent ? committedLengths.get(name) : null;
+        try (RandomAccessFile file = new RandomAccessFile(filepath, "rw")) {
+            file.setLength(committedLength == null ? 0 : committedLength);
+        }
+        final Output output = new Output(filepath, persistent);
+        if (committedLength == null && header != null) {
+            output.write(header);
+        }
+        outputs.add(output);
+        consistentLengths.put(output, output.length());
+        return output;
+    }
+
+    /**
+     * Sequence number of the last row committed by a previous run, 0 if none
+     **/
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Rows a previous run deferred and never processed, to be handed back to this one
+     **/
+    public SortedSet<Long> getDeferred() {
+        return Collections.unmodifiableSortedSet(resumedDeferred);
+    }
+
+    /**
+     * Put off a row without writing any output for it. The commit moves past it, and the row stays
+     * deferred, across restarts, until it is marked processed.
+     **/
+    public void deferred(final long sequence) throws IOException {
+        if (deferred.add(sequence)) {
+            unjournaledDeferrals.add(sequence);
+            advance(sequence);
+        }
+    }
+
+    /**
+     * Mark a row as processed, its output must already have been written. Rows may be marked out
+     * of order; only the contiguous prefix of processed rows is committed, and only up to a row
+     * after which no output had been written yet. A deferred row is no longer deferred once the
+     * output lengths committed with it include its rows.
+     **/
+    public void processed(final long sequence) throws IOException {
+        if (deferred.remove(sequence)) {
+            resolvedAhead.add(sequence);
+            if (processedAhead.isEmpty()) {
+                markConsistent();
+            }
+            commitIfDue();
+            return;
+        }
+        advance(sequence);
+    }
+
+    private void advance(final long sequence) throws IOException {
+        if (sequence == processedSequence + 1) {
+            processedSequence = sequence;
+            while (processedAhead.get((int) (processedSequence + 1 - lastSequence))) {
+                processedAhead.clear((int) (processedSequence + 1 - lastSequence));
+                processedSequence++;
+            }
+        } else if (sequence > processedSequence) {
+            processedAhead.set((int) (sequence - lastSequence));
+        }
+        if (processedAhead.isEmpty()) {
+            markConsistent();
+        }
+        commitIfDue();
+    }
+
+    // Every output holds exactly the rows processed so far
+    private void markConsistent() {
+        consistentSequence = processedSequence;
+        for (final Output output : outputs) {
+            consistentLengths.put(output, output.length());
+        }
+        resolved.addAll(resolvedAhead);
+        resolvedAhead.clear();
+    }
+
+    private void commitIfDue() throws IOException {
+        if (++uncommittedRows >= commitRows || System.currentTimeMillis() - lastCommitTime >= commitMillis) {
+            commit();
+        }
+    }
+
+    /**
+     * Flush and sync the outputs, then append and sync the committed row number
+     **/
+    public void commit() throws IOException {
+        final StringBuilder line = new StringBuilder().append(consistentSequence);
+        for (final Output output : outputs) {
+            output.sync();
+            if (output.persistent) {
+                line.append('\t').append(output.name).append('=').append(consistentLengths.get(output));
+            }
+        }
+        // Deferrals the commit covers go first, a row deferred and resolved since the last commit needs both
+        final SortedSet<Long> covered = unjournaledDeferrals.headSet(consistentSequence + 1);
+        for (final Long sequence : covered) {
+            line.append("\t+").append(sequence);
+        }
+        covered.clear();
+        for (final Long sequence : resolved) {
+            line.append("\t-").append(sequence);
+        }
+        resolved.clear();
+        journalWriter.write(line.toString());
+        journalWriter.newLine();
+        journalWriter.flush();
+        journalStream.getFD().sync();
+
+        // Rebase the out-of-order set on the new committed sequence
+        final int shift = (int) (processedSequence - lastSequence);
+        final BitSet ahead = processedAhead.length() > shift
+                ? processedAhead.get(shift, processedAhead.length()) : new BitSet();
+        processedAhead.clear();
+        processedAhead.or(ahead);
+        lastSequence = processedSequence;
+        uncommittedRows = 0;
+        lastCommitTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Commit and mark the run as complete
+     **/
+    public void complete() throws IOException {
+        commit();
+        journalWriter.write(COMPLETE);
+        journalWriter.newLine();
+        journalWriter.flush();
+        journalStream.getFD().sync();
+        complete = true;
+    }
+
+    /**
+     * Remove the journal, once its input has been replaced and the row numbers no longer apply
+     **/
+    public void delete() throws IOException {
+        close();
+        new File(journalPath).delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final Output output : outputs) {
+            output.close();
+        }
+        outputs.clear();
+        journalWriter.close();
+    }
+
+    /**
+     * Long-lived buffered CSV output, flushed and synced on journal commit
+     **/
+    public static class Output {
+
+        private final String name;
+
+        private final boolean persistent;
+
+        private final FileOutputStream stream;
+
+        private final CSVWriter writer;
+
+        private final Charset charset;
+
+        // Bytes in the file once everything written so far is flushed
+        private long length;
+
+        private Consumer<String[]> onWrite;
+
+        private Output(final String filepath, final boolean persistent) throws IOException {
+            this.name = new File(filepath).getName();
+            this.persistent = persistent;
+            this.stream = new FileOutputStream(filepath, true);
+            final OutputStreamWriter streamWriter = new OutputStreamWriter(stream);
+            this.charset = Charset.forName(streamWriter.getEncoding());
+            this.length = stream.getChannel().size();
+            this.writer = new CSVWriter(new CountingWriter(new BufferedWriter(streamWriter)));
+        }
+
+        public void write(final String[] data) {
+            writer.writeNext(data);
+            if (onWrite != null) {
+                onWrite.accept(data);
+            }
+        }
+
+        /**
+         * Pass every row written from now on to the callback, e.g. to count outcomes
+         **/
+        public void onWrite(final Consumer<String[]> callback) {
+            this.onWrite = callback;
+        }
+
+        private void sync() throws IOException {
+            writer.flush();
+            stream.getFD().sync();
+        }
+
+        private long length() {
+            return length;
+        }
+
+        private void close() throws IOException {
+            writer.close();
+        }
+
+        // Counts the encoded bytes of each line on its way into the buffer, so the length is known without a flush
+        private class CountingWriter extends FilterWriter {
+
+            private CountingWriter(final Writer out) {
+                super(out);
+            }
+
+            @Override
+            public void write(final int c) throws IOException {
+                super.write(c);
+                length += String.valueOf((char) c).getBytes(charset).length;
+            }
+
+            @Override
+            public void write(final char[] chars, final int offset, final int count) throws IOException {
+                super.write(chars, offset, count);
+                length += new String(chars, offset, count).getBytes(charset).length;
+            }
+
+            @Override
+            public void write(final String text, final int offset, final int count) throws IOException {
+                super.write(text, offset, count);
+                length += text.substring(offset, offset + count).getBytes(charset).length;
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+import com.opencsv.CSVWriter;
+
+/**
+ * Run-time metrics: latency timers for JCR calls, row outcome counters, throughput and ETA
+ * against the input row count, and a periodic CSV snapshot for graphing long runs. Timed calls
+ * are also recorded as JFR events when the JVM supports them.
+ **/
+public class RunMetrics implements AutoCloseable {
+
+    private static final Logger LOGGER = getLogger(RunMetrics.class);
+
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    private static final String[] SNAPSHOT_HEADER = {"timestamp", "elapsedSeconds", "rowsDone", "totalRows",
+        "completed", "rejected", "skipped", "rowsPerSecond", "etaSeconds", "heapUsedMb", "timer", "count",
+        "avgMillis", "maxMillis"};
+
+    private final List<Timer> timers = new ArrayList<Timer>();
+
+    public final Timer query = timer("query");
+
+    public final Timer unregisterNodeType = timer("unregisterNodeType");
+
+    public final Timer unregisterNamespace = timer("unregisterNamespace");
+
+    public final Timer registerNamespace = timer("registerNamespace");
+
+    public final Timer save = timer("save");
+
+    public final Timer sessionRecycle = timer("sessionRecycle");
+
+    public final AtomicLong completed = new AtomicLong();
+
+    public final AtomicLong rejected = new AtomicLong();
+
+    public final AtomicLong skipped = new AtomicLong();
+
+    private final long startTime = System.currentTimeMillis();
+
+    private volatile long totalRows = 0;
+
+    private long lastSnapshotTime = startTime;
+
+    private long lastSnapshotRows = 0;
+
+    private ScheduledExecutorService scheduler;
+
+    private String snapshotFilePath;
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private Timer timer(final String name) {
+        final Timer timer = new Timer(name);
+        timers.add(timer);
+        return timer;
+    }
+
+    public List<Timer> getTimers() {
+        return timers;
+    }
+
+    /**
+     * Set the number of rows the run is expected to process, for the ETA
+     **/
+    public void setTotalRows(final long totalRows) {
+        this.totalRows = totalRows;
+    }
+
+    /**
+     * Count the data rows of a CSV input, without the header, or the rows of a work file
+     **/
+    public static long countRows(final String filepath) {
+        if (WorkFile.isWorkFile(filepath)) {
+            try {
+                return WorkFile.readRowCount(filepath);
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(filepath))) {
+            long lines = 0;
+            while (reader.readLine() != null) {
+                lines++;
+            }
+            return Math.max(0, lines - 1);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public long getRowsDone() {
+        return completed.get() + rejected.get() + skipped.get();
+    }
+
+    /**
+     * Write a snapshot to the file and log progress every interval until closed
+     **/
+    public void startSnapshots(final String filepath, final long intervalSeconds) {
+        snapshotFilePath = filepath;
+        if (!new File(filepath).isFile()) {
+            try (CSVWriter writer = new CSVWriter(new FileWriter(filepath))) {
+                writer.writeNext(SNAPSHOT_HEADER);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "metrics-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::snapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Log progress and append one row per timer to the snapshot file
+     **/
+    public synchronized void snapshot() {
+        final long now = System.currentTimeMillis();
+        final long rowsDone = getRowsDone();
+        final double elapsedSeconds = (now - startTime) / 1000.0;
+        final double intervalSeconds = (now - lastSnapshotTime) / 1000.0;
+        // Rolling rate over the last interval, falling back to the run average before the first interval
+        final double rowsPerSecond = intervalSeconds > 0 && lastSnapshotTime > startTime
+                ? (rowsDone - lastSnapshotRows) / intervalSeconds
+                : elapsedSeconds > 0 ? rowsDone / elapsedSeconds : 0;
+        final long remaining = Math.max(0, totalRows - rowsDone);
+        final long etaSeconds = rowsPerSecond > 0 ? (long) (remaining / rowsPerSecond) : -1;
+        final long heapUsedMb = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+        lastSnapshotTime = now;
+        lastSnapshotRows = rowsDone;
+
+        LOGGER.info(String.format("Progress: %d/%d rows (completed %d, rejected %d, skipped %d), %.1f rows/s, ETA %s",
+                rowsDone, totalRows, completed.get(), rejected.get(), skipped.get(), rowsPerSecond,
+                etaSeconds < 0 ? "unknown" : formatDuration(etaSeconds)));
+        for (final Timer timer : timers) {
+            if (timer.count.sum() > 0) {
+                LOGGER.info(String.format("  %s: %d calls, avg %.1fms, max %.1fms", timer.name, timer.count.sum(),
+                        timer.averageMillis(), timer.maxMillis()));
+            }
+        }
+
+        if (snapshotFilePath == null) {
+            return;
+        }
+        try (CSVWriter writer = new CSVWriter(new FileWriter(snapshotFilePath, true))) {
+            for (final Timer timer : timers) {
+                writer.writeNext(new String[] {String.valueOf(now), String.format("%.1f", elapsedSeconds),
+                    String.valueOf(rowsDone), String.valueOf(totalRows), String.valueOf(completed.get()),
+                    String.valueOf(rejected.get()), String.valueOf(skipped.get()),
+                    String.format("%.2f", rowsPerSecond), String.valueOf(etaSeconds), String.valueOf(heapUsedMb),
+                    timer.name, String.valueOf(timer.count.sum()), String.format("%.2f", timer.averageMillis()),
+                    String.format("%.2f", timer.maxMillis())});
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String formatDuration(final long seconds) {
+        return String.format("%dh%02dm%02ds", seconds / 3600, (seconds % 3600) / 60, seconds % 60);
+    }
+
+    /**
+     * Stop the periodic snapshots and write a final one
+     **/
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        snapshot();
+    }
+
+    /**
+     * Latency timer for one kind of JCR call
+     **/
+    public static class Timer {
+
+        private final String name;
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public Timer(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * Start timing a call, stop the returned sample when the call returns
+         **/
+        public Sample start(final String target) {
+            return new Sample(this, target);
+        }
+
+        private void record(final long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public double averageMillis() {
+            final long calls = count.sum();
+            return calls == 0 ? 0 : totalNanos.sum() / (calls * 1e6);
+        }
+
+        public double maxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+    }
+
+    /**
+     * A single timed call
+     **/
+    public static class Sample {
+
+        private final Timer timer;
+
+        private final long startNanos = System.nanoTime();
+
+        private final Object event;
+
+        private Sample(final Timer timer, final String target) {
+            this.timer = timer;
+            this.event = JFR_AVAILABLE ? beginEvent(timer.name, target) : null;
+        }
+
+        private static Object beginEvent(final String operation, final String target) {
+            final JcrCallEvent event = new JcrCallEvent();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.operation = operation;
+            event.target = target;
+            event.begin();
+            return event;
+        }
+
+        /**
+         * Record the call's latency, returns it in nanoseconds
+         **/
+        public long stop() {
+            final long nanos = System.nanoTime() - startNanos;
+            timer.record(nanos);
+            if (event != null) {
+                ((JcrCallEvent) event).commit();
+            }
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.jcr.Session;
+
+import org.slf4j.Logger;
+
+/**
+ * Decides when a long-lived session is due to be replaced and replaces it. A session is recycled
+ * after a number of operations, or once heap use crosses a threshold, so its caches do not keep
+ * growing over a multi-hour run. Each recycle logs heap use and the average latency of every
+ * timer since the previous recycle, so the log shows whether recycling keeps throughput steady.
+ **/
+public class SessionRecycler {
+
+    private static final Logger LOGGER = getLogger(SessionRecycler.class);
+
+    private final Supplier<Session> sessionSupplier;
+
+    private final long maxOperations;
+
+    private final double maxHeapFraction;
+
+    private final long minOperations;
+
+    private final RunMetrics metrics;
+
+    // Timer count and total at the previous recycle, for the latency over the interval since
+    private final Map<String, long[]> lastTimerTotals = new HashMap<String, long[]>();
+
+    /**
+     * @param sessionSupplier source of the replacement sessions
+     * @param maxOperations operations after which a session is recycled, 0 for no limit
+     * @param maxHeapFraction fraction of the maximum heap above which a session is recycled, 0 for no limit
+     * @param minOperations operations a session is kept for at least, however high heap use is
+     * @param metrics timers reported on each recycle
+     **/
+    public SessionRecycler(final Supplier<Session> sessionSupplier, final long maxOperations,
+            final double maxHeapFraction, final long minOperations, final RunMetrics metrics) {
+        this.sessionSupplier = sessionSupplier;
+        this.maxOperations = maxOperations;
+        this.maxHeapFraction = maxHeapFraction;
+        this.minOperations = minOperations;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Configure recycling from the session.recycle.* system properties, off unless one of them is set
+     **/
+    public static SessionRecycler fromProperties(final Supplier<Session> sessionSupplier, final RunMetrics metrics) {
+        return new SessionRecycler(sessionSupplier,
+                Long.getLong("session.recycle.operations", 0L),
+                Integer.getInteger("session.recycle.heap.percent", 0) / 100.0,
+                Long.getLong("session.recycle.min.operations", 1000L),
+                metrics);
+    }
+
+    public boolean isEnabled() {
+        return maxOperations > 0 || maxHeapFraction > 0;
+    }
+
+    /**
+     * Whether a session that has run the given number of operations should be recycled
+     **/
+    public boolean isDue(final long operations) {
+        if (maxOperations > 0 && operations >= maxOperations) {
+            return true;
+        }
+        if (maxHeapFraction > 0 && operations >= minOperations) {
+            final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            return heap.getMax() > 0 && heap.getUsed() > heap.getMax() * maxHeapFraction;
+        }
+        return false;
+    }
+
+    /**
+     * Log out of the session and get a new one in its place
+     *
+     * @param session session to retire, it must have no pending changes
+     * @param label which session this is, for the log
+     * @param operations operations the session ran
+     **/
+    public Session recycle(final Session session, final String label, final long operations) {
+        final long heapBefore = usedHeapMb();
+        final RunMetrics.Sample sample = metrics.sessionRecycle.start(label);
+        final Session replacement;
+        try {
+            session.logout();
+            replacement = sessionSupplier.get();
+        } finally {
+            sample.stop();
+        }
+        LOGGER.info("Recycled " + label + " session after " + operations + " operations, heap " + heapBefore
+                + "MB before, " + usedHeapMb() + "MB after");
+        logIntervalLatencies();
+        return replacement;
+    }
+
+    private synchronized void logIntervalLatencies() {
+        for (final RunMetrics.Timer timer : metrics.getTimers()) {
+            final long count = timer.getCount();
+            final long totalNanos = timer.getTotalNanos();
+            final long[] last = lastTimerTotals.getOrDefault(timer.getName(), new long[2]);
+            if (count > last[0]) {
+                LOGGER.info(String.format("  %s: avg %.1fms over the last %d calls, %.1fms over the run",
+                        timer.getName(), (totalNanos - last[1]) / ((count - last[0]) * 1e6), count - last[0],
+                        timer.averageMillis()));
+            }
+            lastTimerTotals.put(timer.getName(), new long[] {count, totalNanos});
+        }
+    }
+
+    private static long usedHeapMb() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+    }
+}
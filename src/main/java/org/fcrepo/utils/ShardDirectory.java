@@ -0,0 +1,387 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import com.opencsv.exceptions.CsvValidationException;
+
+/**
+ * Shared directory through which several JVMs split a read-only run between them. The work is
+ * cut into shards by prefix range. A process claims a shard by creating its lock file, keeps the
+ * lock fresh while it works and marks the shard done when finished; a lock left stale by a process
+ * that died can be claimed again. Each lock holds a token unique to its claim, so a process only
+ * ever refreshes, releases or reclaims the lock it looked at. The same locking elects the single
+ * process allowed to change the registries.
+ **/
+public class ShardDirectory {
+
+    private static final Logger LOGGER = getLogger(ShardDirectory.class);
+
+    public static final String LIST = "list";
+
+    public static final String RESOURCES = "resources";
+
+    private static final String WRITER = "writer";
+
+    private final Path directory;
+
+    private final long staleMillis;
+
+    public ShardDirectory(final String directory, final long staleSeconds) throws IOException {
+        this.directory = Files.createDirectories(Paths.get(directory));
+        this.staleMillis = TimeUnit.SECONDS.toMillis(staleSeconds);
+    }
+
+    /**
+     * Shard directory from -Dshard.dir, locks go stale after -Dshard.stale.seconds
+     **/
+    public static ShardDirectory fromProperties() throws IOException {
+        return new ShardDirectory(NamespaceUtil.getPropertyOrExit("shard.dir", "/shared/path/to/shards"),
+                Long.getLong("shard.stale.seconds", 300L));
+    }
+
+    /**
+     * Path of a shard's CSV
+     **/
+    public String getShardPath(final String name, final int shard) {
+        return directory.resolve(String.format("%s-%04d.csv", name, shard)).toString();
+    }
+
+    /**
+     * Count the shard CSVs written by a split
+     **/
+    public int countShards(final String name) {
+        int count = 0;
+        while (Files.isRegularFile(Paths.get(getShardPath(name, count)))) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Split an input CSV into shards by prefix range. Prefixes are ordered by their number and each
+     * shard takes a contiguous range with about the same number of rows, rows of one prefix stay
+     * together and keep their input order.
+     **/
+    public void split(final String filepath, final int shardCount) throws IOException {
+        final Map<String, List<String[]>> rowsByPrefix = new LinkedHashMap<String, List<String[]>>();
+        final String[] header;
+        long rowCount = 0;
+        try (CSVReader reader = new CSVReader(new FileReader(filepath))) {
+            header = reader.readNext();
+            String[] data;
+            while ((data = reader.readNext()) != null) {
+                rowsByPrefix.computeIfAbsent(data[0], k -> new ArrayList<String[]>(1)).add(data);
+                rowCount++;
+            }
+        } catch (CsvValidationException e) {
+            throw new IOException(e);
+        }
+
+        final List<String> prefixes = new ArrayList<String>(rowsByPrefix.keySet());
+        prefixes.sort(PREFIX_ORDER);
+
+        final String manifestPath = directory.resolve(RESOURCES + "-shards.csv").toString();
+        try (CSVWriter manifest = new CSVWriter(new FileWriter(manifestPath))) {
+            manifest.writeNext(new String[] {"shard", "firstPrefix", "lastPrefix", "rows"});
+            int next = 0;
+            long written = 0;
+            for (int shard = 0; shard < shardCount; shard++) {
+                final long target = rowCount * (shard + 1) / shardCount;
+                final int first = next;
+                long shardRows = 0;
+                try (CSVWriter writer = new CSVWriter(new FileWriter(getShardPath(RESOURCES, shard)))) {
+                    writer.writeNext(header);
+                    while (next < prefixes.size() && (written < target || shard == shardCount - 1)) {
+                        for (final String[] data : rowsByPrefix.get(prefixes.get(next))) {
+                            writer.writeNext(data);
+                            written++;
+                            shardRows++;
+                        }
+                        next++;
+                    }
+                }
+                manifest.writeNext(new String[] {String.valueOf(shard),
+                    first < next ? prefixes.get(first) : "", first < next ? prefixes.get(next - 1) : "",
+                    String.valueOf(shardRows)});
+            }
+        }
+        LOGGER.info("Split " + rowCount + " rows of " + prefixes.size() + " prefixes into " + shardCount
+                + " shards in " + directory + ", see " + manifestPath);
+    }
+
+    /**
+     * Concatenate the shard CSVs, in shard order and with one header, once every shard is done
+     *
+     * @return whether the merge was written
+     **/
+    public boolean merge(final String name, final String targetPath, final int shardCount) throws IOException {
+        for (int shard = 0; shard < shardCount; shard++) {
+            if (! isDone(name, shard)) {
+                LOGGER.error("Shard " + getShardPath(name, shard) + " is not done yet, not merging");
+                return false;
+            }
+        }
+        long rows = 0;
+        try (CSVWriter writer = new CSVWriter(new FileWriter(targetPath))) {
+            for (int shard = 0; shard < shardCount; shard++) {
+                try (CSVReader reader = new CSVReader(new FileReader(getShardPath(name, shard)))) {
+                    final String[] header = reader.readNext();
+                    if (shard == 0 && header != null) {
+                        writer.writeNext(header);
+                    }
+                    String[] data;
+                    while ((data = reader.readNext()) != null) {
+                        writer.writeNext(data);
+                        rows++;
+                    }
+                } catch (CsvValidationException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+        LOGGER.info("Merged " + rows + " rows from " + shardCount + " " + name + " shards into " + targetPath);
+        return true;
+    }
+
+    /**
+     * Claim the next shard that is neither done nor held by a live process
+     *
+     * @return the claim, or null when every shard is done or taken
+     **/
+    public Claim claim(final String name, final int shardCount) throws IOException {
+        for (int shard = 0; shard < shardCount; shard++) {
+            if (isDone(name, shard)) {
+                continue;
+            }
+            final Claim claim = tryLock(String.format("%s-%04d", name, shard), shard);
+            if (claim != null) {
+                // Another process may have finished it between the check and the lock
+                if (isDone(name, shard)) {
+                    claim.close();
+                    continue;
+                }
+                return claim;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Become the single process that changes the registries
+     *
+     * @return the claim, or null when another live process is the writer
+     **/
+    public Claim electWriter() throws IOException {
+        return tryLock(WRITER, -1);
+    }
+
+    private boolean isDone(final String name, final int shard) {
+        return Files.exists(directory.resolve(String.format("%s-%04d.done", name, shard)));
+    }
+
+    private Claim tryLock(final String lockName, final int shard) throws IOException {
+        final Path lock = directory.resolve(lockName + ".lock");
+        final String token = owner() + " " + UUID.randomUUID();
+        try {
+            Files.write(lock, token.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            if (! reclaimStale(lock)) {
+                return null;
+            }
+            return tryLock(lockName, shard);
+        }
+        LOGGER.info("Claimed " + lockName);
+        return new Claim(lockName, lock, shard, token);
+    }
+
+    // Move a lock whose owner stopped refreshing it out of the way, only one process wins the move
+    private boolean reclaimStale(final Path lock) throws IOException {
+        try {
+            final String token = staleToken(lock);
+            return token != null && takeStale(lock, token);
+        } catch (NoSuchFileException e) {
+            // Released or reclaimed by someone else in the meantime
+            return true;
+        }
+    }
+
+    // Token of the lock when it is stale, null while its owner keeps it fresh. The token is read before the
+    // age, so a lock replaced in between is judged by the age of the replacement.
+    String staleToken(final Path lock) throws IOException {
+        final String token = read(lock);
+        final long age = System.currentTimeMillis() - Files.getLastModifiedTime(lock).toMillis();
+        return age < staleMillis ? null : token;
+    }
+
+    // Move the stale lock aside. Another process may have reclaimed it and claimed it afresh since it was
+    // judged stale, in which case the fresh lock is put back and the claim given up.
+    boolean takeStale(final Path lock, final String token) throws IOException {
+        final Path stale = lock.resolveSibling(lock.getFileName() + ".stale-" + System.nanoTime());
+        Files.move(lock, stale, StandardCopyOption.ATOMIC_MOVE);
+        final String moved = read(stale);
+        if (! token.equals(moved)) {
+            try {
+                // A link is only created when nothing took the lock's name while it was away
+                Files.createLink(lock, stale);
+            } catch (FileAlreadyExistsException e) {
+                LOGGER.error("Unable to put back " + lock + " of " + moved + ", it was claimed again meanwhile");
+            }
+            Files.delete(stale);
+            return false;
+        }
+        LOGGER.warn("Reclaiming " + lock + ", its owner has not refreshed it for " + staleMillis / 1000
+                + "s or more: " + token);
+        Files.delete(stale);
+        return true;
+    }
+
+    private static String read(final Path lock) throws IOException {
+        return new String(Files.readAllBytes(lock), StandardCharsets.UTF_8);
+    }
+
+    private static String owner() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    // nsNNN prefixes in numeric order, anything else after them in string order
+    private static final Comparator<String> PREFIX_ORDER = (a, b) -> {
+        final long numberA = prefixNumber(a);
+        final long numberB = prefixNumber(b);
+        if (numberA != numberB) {
+            return Long.compare(numberA, numberB);
+        }
+        return a.compareTo(b);
+    };
+
+    private static long prefixNumber(final String prefix) {
+        if (prefix.length() > 2 && prefix.length() < 20 && prefix.startsWith("ns")) {
+            try {
+                return Long.parseLong(prefix.substring(2));
+            } catch (NumberFormatException e) {
+                return Long.MAX_VALUE;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * A held lock, refreshed in the background until it is closed
+     **/
+    public class Claim implements AutoCloseable {
+
+        private final String lockName;
+
+        private final Path lock;
+
+        private final int shard;
+
+        private final String token;
+
+        private final ScheduledExecutorService heartbeat;
+
+        private Claim(final String lockName, final Path lock, final int shard, final String token) {
+            this.lockName = lockName;
+            this.lock = lock;
+            this.shard = shard;
+            this.token = token;
+            heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "shard-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long interval = Math.max(1000, staleMillis / 3);
+            heartbeat.scheduleAtFixedRate(this::refresh, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        /**
+         * Whether the lock file is still this claim's, it is lost once another process reclaims it
+         **/
+        public boolean isHeld() {
+            try {
+                return token.equals(read(lock));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void refresh() {
+            if (! isHeld()) {
+                LOGGER.error("Lost " + lock + ", another process reclaimed it");
+                heartbeat.shutdown();
+                return;
+            }
+            try {
+                Files.setLastModifiedTime(lock, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                LOGGER.warn("Unable to refresh " + lock + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Mark the shard done so no process claims it again, refused once the lock is lost
+         **/
+        public void complete() throws IOException {
+            if (! isHeld()) {
+                throw new IOException("Lost " + lock + " to another process, not marking " + lockName + " done");
+            }
+            Files.write(directory.resolve(lockName + ".done"), owner().getBytes(StandardCharsets.UTF_8));
+            LOGGER.info("Completed " + lockName);
+        }
+
+        @Override
+        public void close() throws IOException {
+            heartbeat.shutdownNow();
+            // A lost lock belongs to its new owner now
+            if (isHeld()) {
+                Files.deleteIfExists(lock);
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.modeshape.schematic.document.Array;
+import org.modeshape.schematic.document.Document;
+import org.modeshape.schematic.document.Json;
+import org.modeshape.schematic.document.ParsingException;
+import org.slf4j.Logger;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import com.opencsv.exceptions.CsvValidationException;
+
+/**
+ * Looks up the resources using each spurious nodetype in Solr, replacing
+ * scripts/find-resources-with-nodetypes.py. The rdf_type values of a batch of rows are sent as a
+ * single terms filter and every page of hits is fetched with cursorMark paging. Batches run a few
+ * at a time over pooled keep-alive connections and are written back in input order.
+ **/
+public class SolrResourceLookup implements AutoCloseable {
+
+    private static final Logger LOGGER = getLogger(SolrResourceLookup.class);
+
+    private static final String BINARY_TYPE = "fedora:Binary";
+
+    private static final String CURSOR_START = "*";
+
+    private final String solrUrl;
+
+    private final int batchSize;
+
+    private final int rows;
+
+    private final int concurrency;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private final CloseableHttpClient httpClient;
+
+    private final ExecutorService executor;
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * @param solrUrl base url of the Solr core, e.g. http://localhost:8983/solr/fedora4/
+     * @param batchSize input rows, and so at most as many rdf_type values, per query
+     * @param rows hits per cursor page
+     * @param concurrency queries in flight at once, and pooled connections
+     * @param timeoutMillis connect and read timeout
+     **/
+    public SolrResourceLookup(final String solrUrl, final int batchSize, final int rows, final int concurrency,
+            final int timeoutMillis) {
+        this.solrUrl = solrUrl.endsWith("/") ? solrUrl : solrUrl + "/";
+        this.batchSize = Math.max(1, batchSize);
+        this.rows = Math.max(1, rows);
+        this.concurrency = Math.max(1, concurrency);
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(this.concurrency);
+        connectionManager.setDefaultMaxPerRoute(this.concurrency);
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeoutMillis)
+                        .setSocketTimeout(timeoutMillis)
+                        .build())
+                .build();
+        executor = Executors.newFixedThreadPool(this.concurrency);
+    }
+
+    /**
+     * Create a lookup from the solr.url, solr.batch.size, solr.rows, solr.concurrency and
+     * solr.timeout.millis properties
+     **/
+    public static SolrResourceLookup fromProperties() {
+        return new SolrResourceLookup(
+                System.getProperty("solr.url", "http://localhost:8983/solr/fedora4/"),
+                Integer.getInteger("solr.batch.size", 200),
+                Integer.getInteger("solr.rows", 1000),
+                Integer.getInteger("solr.concurrency", 4),
+                Integer.getInteger("solr.timeout.millis", 60000));
+    }
+
+    /**
+     * Fill in the resource column of a list CSV, writing <file>-with-resources.csv. A row without a
+     * resource is written once per resource found, rows left without a resource are written last,
+     * and rows that already have a resource are written as-is.
+     **/
+    public void addResources(final String filepath) throws IOException {
+        final String outputFilePath = filepath.replaceFirst("(\\.[^./]*)?$", "-with-resources.csv");
+        LOGGER.info("Looking up resources in " + solrUrl + " for " + filepath);
+        final long start = System.currentTimeMillis();
+        final List<String[]> rowsWithoutResource = new ArrayList<String[]>();
+
+        try (CSVReader reader = new CSVReader(new FileReader(filepath));
+             CSVWriter writer = new CSVWriter(new FileWriter(outputFilePath))) {
+            final String[] header = reader.readNext();
+            writer.writeNext(header);
+            final int namespaceUriColumn = column(header, "namespaceUri");
+            final int resourceColumn = column(header, "resource");
+
+            // Batches are resolved concurrently and written in submission order
+            final Deque<List<String[]>> pendingBatches = new ArrayDeque<List<String[]>>();
+            final Deque<Future<Map<String, List<String>>>> pendingResults =
+                    new ArrayDeque<Future<Map<String, List<String>>>>();
+            final Iterator<String[]> csvRowIterator = reader.iterator();
+            List<String[]> batch = new ArrayList<String[]>();
+            final Set<String> batchTypes = new LinkedHashSet<String>();
+            long rowCount = 0;
+            while (csvRowIterator.hasNext() || !batch.isEmpty()) {
+                if (csvRowIterator.hasNext()) {
+                    final String[] data = csvRowIterator.next();
+                    rowCount++;
+                    batch.add(data);
+                    if (data[resourceColumn].isEmpty()) {
+                        batchTypes.add(data[namespaceUriColumn] + "None");
+                    }
+                    if (batch.size() < batchSize && csvRowIterator.hasNext()) {
+                        continue;
+                    }
+                }
+
+                final List<String> types = new ArrayList<String>(batchTypes);
+                pendingBatches.add(batch);
+                pendingResults.add(executor.submit(() -> findResources(types)));
+                batch = new ArrayList<String[]>();
+                batchTypes.clear();
+
+                if (pendingResults.size() >= concurrency) {
+                    writeBatch(pendingBatches.poll(), await(pendingResults.poll()), namespaceUriColumn,
+                            resourceColumn, writer, rowsWithoutResource);
+                }
+            }
+            while (!pendingResults.isEmpty()) {
+                writeBatch(pendingBatches.poll(), await(pendingResults.poll()), namespaceUriColumn,
+                        resourceColumn, writer, rowsWithoutResource);
+            }
+
+            for (final String[] data : rowsWithoutResource) {
+                writer.writeNext(data);
+            }
+            LOGGER.info("Processed " + rowCount + " rows with " + requestCount.get() + " Solr requests in "
+                    + (System.currentTimeMillis() - start) + "ms, " + rowsWithoutResource.size()
+                    + " rows without a resource");
+        } catch (CsvValidationException e) {
+            throw new IOException(e);
+        }
+        LOGGER.info("Updated CSV file written to " + outputFilePath);
+    }
+
+    private static void writeBatch(final List<String[]> batch, final Map<String, List<String>> resources,
+            final int namespaceUriColumn, final int resourceColumn, final CSVWriter writer,
+            final List<String[]> rowsWithoutResource) {
+        for (final String[] data : batch) {
+            if (!data[resourceColumn].isEmpty()) {
+                writer.writeNext(data);
+                continue;
+            }
+            final List<String> uris = resources.get(data[namespaceUriColumn] + "None");
+            if (uris == null || uris.isEmpty()) {
+                rowsWithoutResource.add(data);
+                continue;
+            }
+            for (final String uri : uris) {
+                final String[] row = data.clone();
+                row[resourceColumn] = uri;
+                writer.writeNext(row);
+            }
+        }
+    }
+
+    /**
+     * Find the resources with any of the rdf_type values, following the cursor until every hit has
+     * been read. Returns the resource URIs by rdf_type value; binaries point at their description.
+     **/
+    public Map<String, List<String>> findResources(final List<String> types) throws IOException {
+        final Map<String, List<String>> resources = new HashMap<String, List<String>>();
+        if (types.isEmpty()) {
+            return resources;
+        }
+        for (final String type : types) {
+            resources.put(type, new ArrayList<String>());
+        }
+
+        final String filter = termsFilter(types);
+        String cursorMark = CURSOR_START;
+        while (true) {
+            final Document response = select(filter, cursorMark);
+            final Document body = response.getDocument("response");
+            final List<?> docs = body == null ? null : body.getArray("docs");
+            if (docs != null) {
+                for (final Object doc : docs) {
+                    addResource((Document) doc, resources);
+                }
+            }
+
+            // The cursor is exhausted when Solr hands the same mark back
+            final String nextCursorMark = response.getString("nextCursorMark");
+            if (nextCursorMark == null || nextCursorMark.equals(cursorMark)) {
+                break;
+            }
+            cursorMark = nextCursorMark;
+        }
+        return resources;
+    }
+
+    private static void addResource(final Document doc, final Map<String, List<String>> resources) {
+        final List<?> rdfTypes = rdfTypes(doc);
+        if (rdfTypes.isEmpty()) {
+            return;
+        }
+        String uri = doc.getString("id");
+        if (rdfTypes.contains(BINARY_TYPE)) {
+            uri += "/fcr:metadata";
+        }
+        for (final Object rdfType : rdfTypes) {
+            final List<String> uris = resources.get(rdfType);
+            if (uris != null) {
+                uris.add(uri);
+            }
+        }
+    }
+
+    // A single-valued rdf_type field comes back as a plain string rather than an array
+    private static List<?> rdfTypes(final Document doc) {
+        final Object value = doc.get("rdf_type");
+        if (value instanceof Array) {
+            return (Array) value;
+        }
+        return value == null ? Collections.emptyList() : Collections.singletonList(value);
+    }
+
+    // The terms parser splits on a separator, pick one that no value in the batch contains
+    private static String termsFilter(final List<String> types) {
+        String separator = ",";
+        for (final String candidate : new String[] {",", "|", "\t", "\u0001"}) {
+            separator = candidate;
+            boolean clash = false;
+            for (final String type : types) {
+                if (type.contains(candidate)) {
+                    clash = true;
+                    break;
+                }
+            }
+            if (!clash) {
+                break;
+            }
+        }
+        return "{!terms f=rdf_type separator=\"" + separator + "\"}" + String.join(separator, types);
+    }
+
+    // POST so a batch of long URIs is not limited by the request line length
+    private Document select(final String filter, final String cursorMark) throws IOException {
+        final List<NameValuePair> params = new ArrayList<NameValuePair>();
+        params.add(new BasicNameValuePair("q", "*:*"));
+        params.add(new BasicNameValuePair("fq", filter));
+        params.add(new BasicNameValuePair("fl", "id,rdf_type"));
+        params.add(new BasicNameValuePair("sort", "id asc"));
+        params.add(new BasicNameValuePair("rows", Integer.toString(rows)));
+        params.add(new BasicNameValuePair("cursorMark", cursorMark));
+        params.add(new BasicNameValuePair("wt", "json"));
+
+        final HttpPost post = new HttpPost(solrUrl + "select");
+        post.setEntity(new UrlEncodedFormEntity(params, UTF_8));
+        requestCount.incrementAndGet();
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                final String message = EntityUtils.toString(response.getEntity());
+                throw new IOException("Solr query failed with status " + status + ": " + message);
+            }
+            try (InputStream content = response.getEntity().getContent()) {
+                return Json.read(content);
+            } catch (ParsingException e) {
+                throw new IOException("Unreadable Solr response", e);
+            }
+        }
+    }
+
+    private static Map<String, List<String>> await(final Future<Map<String, List<String>>> result)
+            throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Solr", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static int column(final String[] header, final String name) throws IOException {
+        for (int i = 0; header != null && i < header.length; i++) {
+            if (name.equals(header[i])) {
+                return i;
+            }
+        }
+        throw new IOException("Missing " + name + " column");
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        httpClient.close();
+        connectionManager.shutdown();
+    }
+}
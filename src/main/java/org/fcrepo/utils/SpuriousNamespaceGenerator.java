@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeTypeDefinition;
+import javax.jcr.nodetype.NodeTypeManager;
+import javax.jcr.nodetype.NodeTypeTemplate;
+
+import org.slf4j.Logger;
+
+/**
+ * Generates spurious namespaces, nodetypes and resources in the shape produced by the batch loader
+ * bug, for load testing the cleanup.
+ **/
+public class SpuriousNamespaceGenerator {
+
+    private static final Logger LOGGER = getLogger(SpuriousNamespaceGenerator.class);
+
+    private static final String BASE_URI = "http://localhost:8080/fcrepo/rest/";
+
+    // Children per bucket node, so no node gets more siblings than this
+    private static final int BUCKET_SIZE = 1000;
+
+    private final Session session;
+
+    private final String prefixBase;
+
+    private final int batchSize;
+
+    /**
+     * @param session session to generate with
+     * @param prefixBase prefix to number, "ns" gives ns0, ns1, ...
+     * @param batchSize nodetypes registered and resources created per save
+     **/
+    public SpuriousNamespaceGenerator(final Session session, final String prefixBase, final int batchSize) {
+        this.session = session;
+        this.prefixBase = prefixBase;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Register the namespaces with their nsXXX:None mixin nodetypes, then create the resources under
+     * the parent path, the first fraction of them carrying one of the mixins. Resources are nested in
+     * two levels of buckets, resource i at parent/b(i / 1000000)/b(i / 1000 % 1000)/r(i), and
+     * numbered on from any resources an earlier run created under the same parent.
+     *
+     * @return the generated prefixes
+     **/
+    public List<String> generate(final int namespaces, final int resources, final double resourceFraction,
+            final String parentPath) throws RepositoryException {
+        final NamespaceRegistry namespaceRegistry = session.getWorkspace().getNamespaceRegistry();
+        final NodeTypeManager nodeTypeManager = session.getWorkspace().getNodeTypeManager();
+
+        final int first = firstFreeNumber(namespaceRegistry);
+        final List<String> prefixes = new ArrayList<String>(namespaces);
+        final List<NodeTypeDefinition> templates = new ArrayList<NodeTypeDefinition>(batchSize);
+
+        long start = System.currentTimeMillis();
+        for (int i = first; i < first + namespaces; i++) {
+            final String prefix = prefixBase + i;
+            namespaceRegistry.registerNamespace(prefix, namespaceUri(prefixBase, i));
+            prefixes.add(prefix);
+
+            final NodeTypeTemplate template = nodeTypeManager.createNodeTypeTemplate();
+            template.setName(prefix + ":None");
+            template.setMixin(true);
+            template.setQueryable(true);
+            templates.add(template);
+            if (templates.size() == batchSize || i == first + namespaces - 1) {
+                nodeTypeManager.registerNodeTypes(templates.toArray(new NodeTypeDefinition[templates.size()]), true);
+                templates.clear();
+                LOGGER.info("  Registered " + (i - first + 1) + " namespaces and nodetypes");
+            }
+        }
+        LOGGER.info("Registered " + namespaces + " namespaces and nodetypes in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        start = System.currentTimeMillis();
+        final Node parent = getOrCreateParent(parentPath);
+        final int withNodeType = prefixes.isEmpty() ? 0 : (int) (resources * resourceFraction);
+        final int firstResource = firstFreeResourceNumber(parent);
+        Node bucket = null;
+        for (int n = 0; n < resources; n++) {
+            final int i = firstResource + n;
+            if (bucket == null || i % BUCKET_SIZE == 0) {
+                bucket = getOrCreateChild(getOrCreateChild(parent, "b" + (i / (BUCKET_SIZE * BUCKET_SIZE))),
+                        "b" + (i / BUCKET_SIZE % BUCKET_SIZE));
+            }
+            final Node resource = bucket.addNode("r" + i, "nt:unstructured");
+            if (n < withNodeType) {
+                resource.addMixin(prefixes.get(n % prefixes.size()) + ":None");
+            }
+            if ((n + 1) % batchSize == 0) {
+                session.save();
+                LOGGER.info("  Created " + (n + 1) + " resources");
+            }
+        }
+        session.save();
+        LOGGER.info("Created " + resources + " resources, " + withNodeType + " with spurious nodetypes, in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return prefixes;
+    }
+
+    /**
+     * Namespace uri for the i-th generated prefix. Like the batch loader's, uris are grouped by
+     * transaction and nested up to three levels deep: every tenth is a transaction root, every
+     * third of the rest sits below the preceding one.
+     **/
+    public static String namespaceUri(final String prefixBase, final int i) {
+        final String transaction = BASE_URI + "tx:" + prefixBase + "-" + (i / 10) + "/";
+        final int position = i % 10;
+        if (position == 0) {
+            return transaction;
+        }
+        final String container = transaction + "c" + ((position - 1) / 3) + "/";
+        return (position - 1) % 3 == 0 ? container : container + "m" + position + "/";
+    }
+
+    // Continue numbering after any prefixes already generated, so repeated runs do not collide
+    private int firstFreeNumber(final NamespaceRegistry namespaceRegistry) throws RepositoryException {
+        int next = 0;
+        for (final String prefix : namespaceRegistry.getPrefixes()) {
+            if (prefix.startsWith(prefixBase)) {
+                try {
+                    next = Math.max(next, Integer.parseInt(prefix.substring(prefixBase.length())) + 1);
+                } catch (NumberFormatException ignored) {
+                    // not one of ours
+                }
+            }
+        }
+        return next;
+    }
+
+    // Resources are numbered in order, so the highest one sits in the last bucket of the last bucket
+    private static int firstFreeResourceNumber(final Node parent) throws RepositoryException {
+        final Node outer = lastChild(parent, "b");
+        final Node inner = outer == null ? null : lastChild(outer, "b");
+        final Node last = inner == null ? null : lastChild(inner, "r");
+        return last == null ? 0 : Integer.parseInt(last.getName().substring(1)) + 1;
+    }
+
+    // Child with the highest number after the given letter, null when there is none
+    private static Node lastChild(final Node node, final String letter) throws RepositoryException {
+        Node last = null;
+        int highest = -1;
+        for (final NodeIterator children = node.getNodes(letter + "*"); children.hasNext(); ) {
+            final Node child = children.nextNode();
+            try {
+                final int number = Integer.parseInt(child.getName().substring(1));
+                if (number > highest) {
+                    highest = number;
+                    last = child;
+                }
+            } catch (NumberFormatException ignored) {
+                // not one of ours
+            }
+        }
+        return last;
+    }
+
+    private Node getOrCreateParent(final String parentPath) throws RepositoryException {
+        if (session.nodeExists(parentPath)) {
+            return session.getNode(parentPath);
+        }
+        final Node parent = session.getRootNode().addNode(parentPath.replaceFirst("^/", ""), "nt:unstructured");
+        session.save();
+        return parent;
+    }
+
+    private static Node getOrCreateChild(final Node parent, final String name) throws RepositoryException {
+        return parent.hasNode(name) ? parent.getNode(name) : parent.addNode(name, "nt:unstructured");
+    }
+}
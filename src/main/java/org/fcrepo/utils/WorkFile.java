@@ -0,0 +1,387 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+
+/**
+ * Binary form of the "namespace","namespaceUri","nodeType","resource" work file passed between
+ * the cleanup stages. Strings are interned once into a string table and each row is a fixed-width
+ * record of string table offsets plus status flags, so a row is found by its number and a stage
+ * records its outcome by setting flags in place instead of rewriting the file. The header and
+ * records are memory-mapped.
+ *
+ * Layout: a 32 byte header (magic, version, row count, start and end of the string table), the row
+ * records, then the string table of length-prefixed UTF-8 entries. Strings added later, such as resources
+ * found by add-resources, are appended to the end of the table.
+ **/
+public class WorkFile implements AutoCloseable {
+
+    private static final Logger LOGGER = getLogger(WorkFile.class);
+
+    public static final String EXTENSION = ".work";
+
+    // Status flags, one bit per stage outcome
+    public static final int RESOURCES_ADDED = 1;
+
+    public static final int PATCHED = 1 << 1;
+
+    public static final int NODETYPE_UNREGISTERED = 1 << 2;
+
+    public static final int NAMESPACE_UNREGISTERED = 1 << 3;
+
+    public static final int REJECTED = 1 << 4;
+
+    public static final int SKIPPED = 1 << 5;
+
+    private static final String[] FLAG_NAMES = {"resourcesAdded", "patched", "nodeTypeUnregistered",
+        "namespaceUnregistered", "rejected", "skipped"};
+
+    private static final String[] HEADER = {"namespace", "namespaceUri", "nodeType", "resource"};
+
+    private static final int MAGIC = 0x4e535746;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 32;
+
+    // Four string table offsets and the flags, padded to a multiple of 8
+    private static final int RECORD_SIZE = 40;
+
+    private static final int FLAGS_OFFSET = 32;
+
+    private static final long NONE = -1;
+
+    private final String filepath;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final long rowCount;
+
+    private final MappedByteBuffer records;
+
+    private MappedByteBuffer strings;
+
+    private final long stringsStart;
+
+    private long stringsEnd;
+
+    // Built on first use, for appending strings and finding the rows of a prefix
+    private Map<String, Long> internedStrings;
+
+    private Map<String, List<Long>> rowsByPrefix;
+
+    private WorkFile(final String filepath) throws IOException {
+        this.filepath = filepath;
+        this.file = new RandomAccessFile(filepath, "rw");
+        this.channel = file.getChannel();
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+            file.close();
+            throw new IOException(filepath + " is not a work file");
+        }
+        final int version = header.getInt();
+        if (version != VERSION) {
+            file.close();
+            throw new IOException("Unsupported work file version " + version + " in " + filepath);
+        }
+        rowCount = header.getLong();
+        stringsStart = header.getLong();
+        stringsEnd = header.getLong();
+        if (HEADER_SIZE + rowCount * RECORD_SIZE > Integer.MAX_VALUE) {
+            file.close();
+            throw new IOException("Too many rows to map in " + filepath);
+        }
+        records = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + rowCount * RECORD_SIZE);
+        mapStrings();
+    }
+
+    /**
+     * Open an existing work file for reading and updating
+     **/
+    public static WorkFile open(final String filepath) throws IOException {
+        return new WorkFile(filepath);
+    }
+
+    public static boolean isWorkFile(final String filepath) {
+        return filepath != null && filepath.endsWith(EXTENSION);
+    }
+
+    /**
+     * Row count from the header, without mapping the file
+     **/
+    public static long readRowCount(final String filepath) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filepath, "r")) {
+            file.seek(8);
+            return file.readLong();
+        }
+    }
+
+    /**
+     * Convert a CSV in the work file layout to a new work file, interning every distinct string once
+     **/
+    public static void importCsv(final String csvPath, final String workPath) throws IOException {
+        final long start = System.currentTimeMillis();
+        // First pass counts the lines so the string table can start after the records. Quoted fields
+        // spanning lines can only make this an overestimate, which leaves a harmless gap.
+        final long rowCount = RunMetrics.countRows(csvPath);
+        final long stringsStart = HEADER_SIZE + rowCount * RECORD_SIZE;
+        final Map<String, Long> interned = new HashMap<String, Long>();
+
+        try (RandomAccessFile file = new RandomAccessFile(workPath, "rw");
+             CSVReader reader = new CSVReader(new FileReader(csvPath))) {
+            file.setLength(0);
+            final FileChannel channel = file.getChannel();
+            final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            long stringsEnd = stringsStart;
+            long row = 0;
+
+            // Skip header row
+            reader.skip(1);
+            final Iterator<String[]> csvRowIterator = reader.iterator();
+            while (csvRowIterator.hasNext() && row < rowCount) {
+                final String[] data = csvRowIterator.next();
+                record.clear();
+                for (int column = 0; column < HEADER.length; column++) {
+                    final String value = column < data.length ? data[column] : "";
+                    if (column == 3 && value.isEmpty()) {
+                        record.putLong(NONE);
+                        continue;
+                    }
+                    Long offset = interned.get(value);
+                    if (offset == null) {
+                        offset = stringsEnd;
+                        stringsEnd += writeString(channel, stringsEnd, value);
+                        interned.put(value, offset);
+                    }
+                    record.putLong(offset);
+                }
+                record.putInt(0);
+                record.putInt(0);
+                record.flip();
+                channel.write(record, HEADER_SIZE + row * RECORD_SIZE);
+                row++;
+            }
+
+            writeHeader(channel, row, stringsStart, stringsEnd);
+            channel.force(true);
+            LOGGER.info("Imported " + row + " rows with " + interned.size() + " distinct strings from " + csvPath
+                    + " to " + workPath + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Write the rows back out in the CSV layout
+     **/
+    public void exportCsv(final String csvPath) throws IOException {
+        final long[] flagCounts = new long[FLAG_NAMES.length];
+        try (CSVWriter writer = new CSVWriter(new FileWriter(csvPath))) {
+            writer.writeNext(HEADER);
+            for (long row = 0; row < rowCount; row++) {
+                final int flags = getFlags(row);
+                for (int bit = 0; bit < FLAG_NAMES.length; bit++) {
+                    if ((flags & (1 << bit)) != 0) {
+                        flagCounts[bit]++;
+                    }
+                }
+                writer.writeNext(getRow(row));
+            }
+        }
+        LOGGER.info("Exported " + rowCount + " rows from " + filepath + " to " + csvPath);
+        for (int bit = 0; bit < FLAG_NAMES.length; bit++) {
+            LOGGER.info("  " + FLAG_NAMES[bit] + ": " + flagCounts[bit]);
+        }
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Get a row in the CSV layout, the resource is empty when none is recorded
+     **/
+    public synchronized String[] getRow(final long row) throws IOException {
+        final int position = recordPosition(row);
+        final String[] data = new String[HEADER.length];
+        for (int column = 0; column < data.length; column++) {
+            final long offset = records.getLong(position + column * 8);
+            data[column] = offset == NONE ? "" : readString(offset);
+        }
+        return data;
+    }
+
+    public synchronized int getFlags(final long row) {
+        return records.getInt(recordPosition(row) + FLAGS_OFFSET);
+    }
+
+    /**
+     * Set status flags on a row, in place. Flags already set are kept.
+     **/
+    public synchronized void setFlags(final long row, final int flags) {
+        final int position = recordPosition(row) + FLAGS_OFFSET;
+        records.putInt(position, records.getInt(position) | flags);
+    }
+
+    /**
+     * Set status flags on every row of a namespace prefix
+     **/
+    public synchronized void setFlags(final String prefix, final int flags) throws IOException {
+        if (rowsByPrefix == null) {
+            rowsByPrefix = new HashMap<String, List<Long>>();
+            for (long row = 0; row < rowCount; row++) {
+                final String rowPrefix = readString(records.getLong(recordPosition(row)));
+                rowsByPrefix.computeIfAbsent(rowPrefix, k -> new ArrayList<Long>(1)).add(row);
+            }
+        }
+        for (final long row : rowsByPrefix.getOrDefault(prefix, Collections.<Long>emptyList())) {
+            setFlags(row, flags);
+        }
+    }
+
+    /**
+     * Record a resource for a row, appending it to the string table if it is new
+     **/
+    public synchronized void setResource(final long row, final String resource) throws IOException {
+        if (internedStrings == null) {
+            internedStrings = new HashMap<String, Long>();
+            long offset = stringsStart;
+            while (offset < stringsEnd) {
+                final String value = readString(offset);
+                internedStrings.put(value, offset);
+                offset += 4 + value.getBytes(UTF_8).length;
+            }
+        }
+        Long offset = internedStrings.get(resource);
+        if (offset == null) {
+            offset = stringsEnd;
+            stringsEnd += writeString(channel, stringsEnd, resource);
+            writeHeader(channel, rowCount, stringsStart, stringsEnd);
+            internedStrings.put(resource, offset);
+        }
+        records.putLong(recordPosition(row) + 3 * 8, offset);
+    }
+
+    /**
+     * The rows in order as CSV layout arrays
+     **/
+    public Iterable<String[]> rows() {
+        return () -> new Iterator<String[]>() {
+            private long row = 0;
+
+            @Override
+            public boolean hasNext() {
+                return row < rowCount;
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return getRow(row);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to read row " + row + " of " + filepath, e);
+                } finally {
+                    row++;
+                }
+            }
+        };
+    }
+
+    /**
+     * Flush the flag updates and any appended strings to disk
+     **/
+    public synchronized void force() throws IOException {
+        channel.force(false);
+        records.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        file.close();
+    }
+
+    private int recordPosition(final long row) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+        }
+        return (int) (HEADER_SIZE + row * RECORD_SIZE);
+    }
+
+    // Strings appended since the file was opened lie past the mapping, remap to cover them
+    private String readString(final long offset) throws IOException {
+        if (offset + 4 > stringsStart + strings.limit()) {
+            mapStrings();
+        }
+        final int position = (int) (offset - stringsStart);
+        final ByteBuffer view = strings.duplicate();
+        view.position(position);
+        final byte[] bytes = new byte[view.getInt()];
+        view.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private void mapStrings() throws IOException {
+        if (stringsEnd - stringsStart > Integer.MAX_VALUE) {
+            throw new IOException("String table too large to map in " + filepath);
+        }
+        strings = channel.map(FileChannel.MapMode.READ_ONLY, stringsStart, stringsEnd - stringsStart);
+    }
+
+    private static int writeString(final FileChannel channel, final long offset, final String value)
+            throws IOException {
+        final byte[] bytes = value.getBytes(UTF_8);
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
+        buffer.putInt(bytes.length).put(bytes).flip();
+        channel.write(buffer, offset);
+        return 4 + bytes.length;
+    }
+
+    private static void writeHeader(final FileChannel channel, final long rowCount, final long stringsStart,
+            final long stringsEnd) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(rowCount).putLong(stringsStart).putLong(stringsEnd).flip();
+        channel.write(header, 0);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.slf4j.Logger;
+
+/**
+ * Fans read-only JCR work out to worker threads that each own a session, while handing the
+ * results back to the calling thread in submission order so output stays deterministic.
+ **/
+public class WorkerPool implements AutoCloseable {
+
+    private static final Logger LOGGER = getLogger(WorkerPool.class);
+
+    // How many submissions may be in flight per worker before the caller waits on the oldest
+    private static final int WINDOW_PER_WORKER = 4;
+
+    /**
+     * Read-only work run on a worker, against the worker's own probe and session
+     **/
+    public interface Task<I, O> {
+        O apply(ExistenceProbe probe, I input) throws RepositoryException;
+    }
+
+    /**
+     * Consumer of task results, always called on the submitting thread in submission order
+     **/
+    public interface Sink<I, O> {
+        void accept(I input, O output) throws RepositoryException, IOException;
+    }
+
+    private volatile ExistenceProbe mainProbe;
+
+    private final int workers;
+
+    private final List<Session> workerSessions = new ArrayList<Session>();
+
+    private final BlockingQueue<ExistenceProbe> idleProbes;
+
+    private final ExecutorService executor;
+
+    private final SessionRecycler sessionRecycler;
+
+    /**
+     * @param mainProbe probe on the main session, used directly when there is a single worker
+     * @param workers number of worker threads and sessions
+     * @param sessionSupplier source of the additional worker sessions
+     **/
+    public WorkerPool(final ExistenceProbe mainProbe, final int workers, final Supplier<Session> sessionSupplier)
+            throws RepositoryException {
+        this(mainProbe, workers, sessionSupplier, null);
+    }
+
+    /**
+     * @param mainProbe probe on the main session, used directly when there is a single worker
+     * @param workers number of worker threads and sessions
+     * @param sessionSupplier source of the additional worker sessions
+     * @param sessionRecycler recycles the worker sessions when due, may be null
+     **/
+    public WorkerPool(final ExistenceProbe mainProbe, final int workers, final Supplier<Session> sessionSupplier,
+            final SessionRecycler sessionRecycler) throws RepositoryException {
+        this.mainProbe = mainProbe;
+        this.sessionRecycler = sessionRecycler;
+        this.workers = Math.max(1, workers);
+        if (this.workers == 1) {
+            idleProbes = null;
+            executor = null;
+            return;
+        }
+
+        LOGGER.info("Starting " + this.workers + " workers");
+        idleProbes = new ArrayBlockingQueue<ExistenceProbe>(this.workers);
+        for (int i = 0; i < this.workers; i++) {
+            final Session session = sessionSupplier.get();
+            workerSessions.add(session);
+            idleProbes.add(mainProbe.withSession(session));
+        }
+        executor = Executors.newFixedThreadPool(this.workers);
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Use a new probe for the main session, after the main session has been recycled
+     **/
+    public void setMainProbe(final ExistenceProbe mainProbe) {
+        this.mainProbe = mainProbe;
+    }
+
+    // Swap the worker's session for a fresh one once it is due, the probe cache carries over
+    private ExistenceProbe recycleIfDue(final ExistenceProbe probe) throws RepositoryException {
+        if (sessionRecycler == null || ! sessionRecycler.isDue(probe.getSessionQueryCount())) {
+            return probe;
+        }
+        final Session session = sessionRecycler.recycle(probe.getSession(), "worker",
+                probe.getSessionQueryCount());
+        synchronized (workerSessions) {
+            workerSessions.set(workerSessions.indexOf(probe.getSession()), session);
+        }
+        return probe.withSession(session);
+    }
+
+    /**
+     * Start an ordered run of the task, results are passed to the sink in submission order
+     **/
+    public <I, O> OrderedRun<I, O> start(final Task<I, O> task, final Sink<I, O> sink) {
+        return new OrderedRun<I, O>(task, sink);
+    }
+
+    @Override
+    public void close() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        synchronized (workerSessions) {
+            for (final Session session : workerSessions) {
+                session.logout();
+            }
+        }
+    }
+
+    /**
+     * A sequence of submissions whose results are delivered in order
+     **/
+    public class OrderedRun<I, O> {
+
+        private final Task<I, O> task;
+
+        private final Sink<I, O> sink;
+
+        private final Deque<I> inputs = new ArrayDeque<I>();
+
+        private final Deque<Future<O>> results = new ArrayDeque<Future<O>>();
+
+        private OrderedRun(final Task<I, O> task, final Sink<I, O> sink) {
+            this.task = task;
+            this.sink = sink;
+        }
+
+        /**
+         * Submit an input. With a single worker it is processed immediately, otherwise this
+         * waits for the oldest result once the in-flight window is full.
+         **/
+        public void submit(final I input) throws RepositoryException, IOException {
+            if (executor == null) {
+                sink.accept(input, task.apply(mainProbe, input));
+                return;
+            }
+
+            inputs.add(input);
+            results.add(executor.submit(() -> {
+                ExistenceProbe probe = idleProbes.take();
+                try {
+                    final O output = task.apply(probe, input);
+                    probe = recycleIfDue(probe);
+                    return output;
+                } finally {
+                    idleProbes.add(probe);
+                }
+            }));
+            if (results.size() >= workers * WINDOW_PER_WORKER) {
+                deliverOldest();
+            }
+        }
+
+        /**
+         * Wait for and deliver every outstanding result
+         **/
+        public void finish() throws RepositoryException, IOException {
+            while (!results.isEmpty()) {
+                deliverOldest();
+            }
+        }
+
+        private void deliverOldest() throws RepositoryException, IOException {
+            final I input = inputs.poll();
+            final O output;
+            try {
+                output = results.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RepositoryException("Interrupted while waiting for worker", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RepositoryException) {
+                    throw (RepositoryException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RepositoryException(e.getCause());
+            }
+            sink.accept(input, output);
+        }
+    }
+}
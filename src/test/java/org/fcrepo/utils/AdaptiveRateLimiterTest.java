@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how the rate responds to feedback, without sleeping through any permits.
+ **/
+public class AdaptiveRateLimiterTest extends TestCase {
+
+    public void testFirstBadResponseBacksOffAndTheCooldownHoldsTheNext() {
+        final AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(100, 1, 200, 4);
+        rateLimiter.onResponse(503, 10);
+        assertEquals(50.0, rateLimiter.getRate(), 0.001);
+        rateLimiter.onResponse(429, 10);
+        assertEquals(50.0, rateLimiter.getRate(), 0.001);
+    }
+
+    public void testHealthyResponsesGrowTheRateUpToTheCeiling() {
+        final AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(195, 1, 200, 4);
+        rateLimiter.onResponse(204, 10);
+        assertEquals(197.0, rateLimiter.getRate(), 0.001);
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.onResponse(204, 10);
+        }
+        assertEquals(200.0, rateLimiter.getRate(), 0.001);
+    }
+
+    public void testLatencyFarAboveTheBaselineBacksOff() {
+        final AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(100, 1, 100, 4);
+        rateLimiter.onResponse(204, 10);
+        rateLimiter.onResponse(204, 100);
+        assertEquals(80.0, rateLimiter.getRate(), 0.001);
+    }
+}
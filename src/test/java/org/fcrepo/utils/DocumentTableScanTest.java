@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import java.io.File;
+import java.io.FileReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.jcr.Repository;
+import javax.jcr.Session;
+
+import junit.framework.TestCase;
+
+import org.modeshape.jcr.ModeShapeEngine;
+import org.modeshape.jcr.RepositoryConfiguration;
+
+import com.opencsv.CSVReader;
+
+/**
+ * Lets ModeShape write spurious namespaces, nodetypes and resources to an embedded H2 document
+ * table, then checks what the offline scan finds in it.
+ **/
+public class DocumentTableScanTest extends TestCase {
+
+    private static final String PREFIX_BASE = "ns";
+
+    private Path directory;
+
+    private String url;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("db-scan-test");
+        url = "jdbc:h2:file:" + directory.resolve("modeshape");
+        System.setProperty("test.h2.url", url);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (final File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+
+    public void testFindsExpandedNodeTypeNamesAndFullNamespaceUris() throws Exception {
+        final List<String> prefixes = populate(4, 8, 0.5);
+
+        final String output = directory.resolve("db-scan.csv").toString();
+        final DocumentTableScan scan = new DocumentTableScan(url, "sa", "", "MODESHAPE_REPOSITORY", 10, 2);
+        scan.scan(output);
+        assertEquals(0, scan.getFailureCount());
+        assertTrue(scan.getDocumentCount() > 0);
+
+        final Set<String> nodeTypeUris = new HashSet<String>();
+        final Set<String> namespaceUris = new HashSet<String>();
+        try (final CSVReader reader = new CSVReader(new FileReader(output))) {
+            final String[] header = reader.readNext();
+            assertEquals("namespaceUri", header[2]);
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                if ("nodeType".equals(row[0])) {
+                    if (!row[2].isEmpty()) {
+                        assertEquals("{" + row[2] + "}None", row[1]);
+                        nodeTypeUris.add(row[2]);
+                    }
+                } else {
+                    assertEquals("namespaceUri", row[0]);
+                    assertEquals(row[1], row[2]);
+                    namespaceUris.add(row[2]);
+                }
+            }
+        }
+
+        for (final String prefix : prefixes) {
+            final String namespaceUri = SpuriousNamespaceGenerator.namespaceUri(PREFIX_BASE,
+                    Integer.parseInt(prefix.substring(PREFIX_BASE.length())));
+            assertTrue("No nodetype found for " + namespaceUri, nodeTypeUris.contains(namespaceUri));
+            assertTrue("Namespace uri not found in full: " + namespaceUri, namespaceUris.contains(namespaceUri));
+        }
+    }
+
+    public void testFindsPrefixedNodeTypeNamesInStrings() throws Exception {
+        final Map<String, String[]> references = new TreeMap<String, String[]>();
+        DocumentTableScan.collect("mixins ns12:None and ns3:Other", references);
+        assertEquals(1, references.size());
+        assertEquals("nodeType", references.get("ns12:None")[0]);
+        assertEquals("", references.get("ns12:None")[1]);
+    }
+
+    // Start ModeShape on the H2 table, generate the spurious content and shut down again
+    private List<String> populate(final int namespaces, final int resources, final double fraction)
+            throws Exception {
+        final ModeShapeEngine engine = new ModeShapeEngine();
+        engine.start();
+        try {
+            final RepositoryConfiguration config =
+                    RepositoryConfiguration.read(getClass().getResource("/h2-repository.json"));
+            final Repository repository = engine.deploy(config);
+            engine.startRepository(config.getName()).get();
+            final Session session = repository.login();
+            try {
+                return new SpuriousNamespaceGenerator(session, PREFIX_BASE, 2)
+                        .generate(namespaces, resources, fraction, "/generated");
+            } finally {
+                session.logout();
+            }
+        } finally {
+            engine.shutdown().get();
+        }
+    }
+}
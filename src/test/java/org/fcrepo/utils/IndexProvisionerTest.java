@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import junit.framework.TestCase;
+
+import org.modeshape.jcr.ModeShapeEngine;
+import org.modeshape.jcr.RepositoryConfiguration;
+
+/**
+ * Provisions the index into an in-memory repository with a local index provider and checks that
+ * the resource queries are planned against it.
+ **/
+public class IndexProvisionerTest extends TestCase {
+
+    private static final String PROBE = "SELECT [jcr:path] FROM [ns1:None]";
+
+    private Path indexDirectory;
+
+    private ModeShapeEngine engine;
+
+    private Session session;
+
+    @Override
+    protected void setUp() throws Exception {
+        indexDirectory = Files.createTempDirectory("index-test");
+        System.setProperty("test.index.directory", indexDirectory.toString());
+        engine = new ModeShapeEngine();
+        engine.start();
+        final RepositoryConfiguration config =
+                RepositoryConfiguration.read(getClass().getResource("/indexed-repository.json"));
+        final Repository repository = engine.deploy(config);
+        engine.startRepository(config.getName()).get();
+        session = repository.login();
+        new SpuriousNamespaceGenerator(session, "ns", 10).generate(3, 6, 1, "/generated");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        session.logout();
+        engine.shutdown().get();
+        System.clearProperty("test.index.directory");
+        delete(indexDirectory.toFile());
+    }
+
+    public void testMixinQueriesUseTheProvisionedIndex() throws Exception {
+        assertFalse(IndexProvisioner.hasNodeTypeIndex(session));
+        assertFalse(plan().contains(IndexProvisioner.DEFAULT_INDEX_NAME));
+        final List<String> scanned = sorted(new ExistenceProbe(session).allPaths("ns1:None"));
+        assertEquals(2, scanned.size());
+
+        assertTrue(new IndexProvisioner(session, IndexProvisioner.DEFAULT_INDEX_NAME).provision(null, 30));
+
+        assertTrue(IndexProvisioner.hasNodeTypeIndex(session));
+        assertTrue(plan(), plan().contains("INDEX_SPECIFICATION=" + IndexProvisioner.DEFAULT_INDEX_NAME));
+        assertEquals(scanned, sorted(new ExistenceProbe(session).allPaths("ns1:None")));
+    }
+
+    public void testDropRemovesTheIndex() throws Exception {
+        final IndexProvisioner provisioner = new IndexProvisioner(session, IndexProvisioner.DEFAULT_INDEX_NAME);
+        provisioner.provision(null, 30);
+        provisioner.drop();
+
+        assertFalse(IndexProvisioner.hasNodeTypeIndex(session));
+        assertFalse(plan().contains(IndexProvisioner.DEFAULT_INDEX_NAME));
+    }
+
+    private String plan() throws Exception {
+        final Query query = session.getWorkspace().getQueryManager().createQuery(PROBE, Query.JCR_SQL2);
+        return ((org.modeshape.jcr.api.query.Query) query).explain().getPlan();
+    }
+
+    private static List<String> sorted(final List<String> values) {
+        final List<String> copy = new ArrayList<String>(values);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the nesting the trie sees between namespace URIs and the leaves-first order that clean relies on.
+ **/
+public class NamespaceUriTrieTest extends TestCase {
+
+    private static final String BASE = "info:fedora/tx:1/";
+
+    public void testNestsOnlyBelowAWholeSegment() {
+        final NamespaceUriTrie trie = trie(BASE, BASE + "a/", BASE + "a/b", BASE + "ab");
+
+        assertEquals(BASE + "a/", trie.getParent(BASE + "a/b"));
+        assertEquals(BASE, trie.getParent(BASE + "ab"));
+        assertEquals(BASE, trie.getParent(BASE + "a/"));
+        assertNull(trie.getParent(BASE));
+        assertTrue(trie.hasChildren(BASE + "a/"));
+        assertFalse(trie.hasChildren(BASE + "ab"));
+    }
+
+    public void testSkipsAbsentUrisToTheNearestPresentAncestor() {
+        final NamespaceUriTrie trie = trie(BASE, BASE + "a/b/c/");
+
+        assertEquals(BASE, trie.getParent(BASE + "a/b/c/"));
+        assertFalse(trie.contains(BASE + "a/"));
+        assertNull(trie.getParent(BASE + "x/"));
+    }
+
+    public void testAddsAndRemovesEachUriOnce() {
+        final NamespaceUriTrie trie = trie(BASE, BASE + "a/");
+
+        assertFalse(trie.add(BASE));
+        assertEquals(2, trie.size());
+        assertTrue(trie.remove(BASE + "a/"));
+        assertFalse(trie.remove(BASE + "a/"));
+        assertFalse(trie.remove(BASE + "never/"));
+        assertEquals(1, trie.size());
+        assertFalse(trie.hasChildren(BASE));
+    }
+
+    public void testOrdersEveryUriAfterTheUrisNestedBelowIt() {
+        final NamespaceUriTrie trie = trie(BASE + "a/", BASE, "info:fedora/tx:2/", BASE + "a/b/", BASE + "a/b/c",
+                BASE + "z");
+
+        assertEquals(Arrays.asList(BASE + "a/b/c", BASE + "a/b/", BASE + "a/", BASE + "z", BASE,
+                "info:fedora/tx:2/"), trie.leavesFirst());
+    }
+
+    public void testOrdersARemovedParentsChildrenWithoutIt() {
+        final NamespaceUriTrie trie = trie(BASE, BASE + "a/", BASE + "a/b");
+        trie.remove(BASE + "a/");
+
+        assertEquals(Arrays.asList(BASE + "a/b", BASE), trie.leavesFirst());
+    }
+
+    public void testOrdersADeepNesting() {
+        final NamespaceUriTrie trie = new NamespaceUriTrie();
+        final StringBuilder uri = new StringBuilder(BASE);
+        for (int depth = 0; depth < 5000; depth++) {
+            uri.append("d/");
+            trie.add(uri.toString());
+        }
+
+        final List<String> ordered = trie.leavesFirst();
+        assertEquals(5000, ordered.size());
+        assertEquals(uri.toString(), ordered.get(0));
+        assertEquals(BASE + "d/", ordered.get(ordered.size() - 1));
+    }
+
+    private static NamespaceUriTrie trie(final String... uris) {
+        final NamespaceUriTrie trie = new NamespaceUriTrie();
+        for (final String uri : uris) {
+            assertTrue(uri, trie.add(uri));
+        }
+        return trie;
+    }
+}
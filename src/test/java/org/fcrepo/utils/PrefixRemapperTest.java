@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.jcr.NamespaceException;
+import javax.jcr.NamespaceRegistry;
+
+import junit.framework.TestCase;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+
+/**
+ * Remaps prefixes on a map-backed registry that moves a URI to its new prefix the way JCR does, and
+ * refuses to register a prefix that is already taken.
+ **/
+public class PrefixRemapperTest extends TestCase {
+
+    private Path directory;
+
+    private MapRegistry registry;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("remap-test");
+        registry = new MapRegistry();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (final File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+
+    public void testAppliesAChainFromItsFreeEnd() throws Exception {
+        registry.put("a", "uri:a").put("b", "uri:b");
+
+        remap(false, "a", "b", "b", "c");
+
+        assertEquals(Arrays.asList("c", "b"), registry.calls);
+        assertEquals(map("b", "uri:a", "c", "uri:b"), registry.prefixes);
+    }
+
+    public void testOpensATwoCycleThroughOneTemporaryPrefix() throws Exception {
+        registry.put("x", "uri:x").put("y", "uri:y");
+
+        final List<String[]> completed = remap(false, "x", "y", "y", "x");
+
+        assertEquals(3, registry.calls.size());
+        assertEquals(PrefixRemapper.TEMP_PREFIX + "x", registry.calls.get(0));
+        assertEquals(map("x", "uri:y", "y", "uri:x"), registry.prefixes);
+        assertEquals(2, completed.size());
+    }
+
+    public void testRotatesAThreeCycleWithOneExtraCall() throws Exception {
+        registry.put("p", "uri:p").put("q", "uri:q").put("r", "uri:r");
+
+        final List<String[]> completed = remap(false, "p", "q", "q", "r", "r", "p");
+
+        assertEquals(4, registry.calls.size());
+        assertEquals(map("p", "uri:r", "q", "uri:p", "r", "uri:q"), registry.prefixes);
+        int calls = 0;
+        for (final String[] row : completed) {
+            calls += Integer.parseInt(row[3]);
+        }
+        assertEquals(4, calls);
+    }
+
+    public void testDryRunPlansTheCycleWithoutTouchingTheRegistry() throws Exception {
+        registry.put("p", "uri:p").put("q", "uri:q").put("r", "uri:r");
+
+        final List<String[]> completed = remap(true, "p", "q", "q", "r", "r", "p");
+
+        assertTrue(registry.calls.isEmpty());
+        assertEquals(map("p", "uri:p", "q", "uri:q", "r", "uri:r"), registry.prefixes);
+        assertEquals(3, completed.size());
+    }
+
+    public void testRejectsABlockedMappingAndTheChainBehindIt() throws Exception {
+        registry.put("d", "uri:d").put("e", "uri:e").put("keep", "uri:keep").put("f", "uri:f");
+
+        remap(false, "d", "e", "e", "keep", "f", "g");
+
+        assertEquals(Arrays.asList("g"), registry.calls);
+        assertEquals(Arrays.asList("e", "d"), column(read("rejected.csv"), 0));
+        assertEquals("uri:d", registry.prefixes.get("d"));
+        assertEquals("uri:e", registry.prefixes.get("e"));
+    }
+
+    public void testRejectsACycleWhoseTemporaryPrefixesAreAllTaken() throws Exception {
+        registry.put("m", "uri:m").put("n", "uri:n").put(PrefixRemapper.TEMP_PREFIX + "m", "uri:tm")
+                .put(PrefixRemapper.TEMP_PREFIX + "n", "uri:tn");
+
+        remap(false, "m", "n", "n", "m");
+
+        assertTrue(registry.calls.isEmpty());
+        assertEquals(2, read("rejected.csv").size());
+    }
+
+    public void testRerunFinishesACycleLeftParkedByACrash() throws Exception {
+        // The first run parked x and stopped before moving y
+        registry.put(PrefixRemapper.TEMP_PREFIX + "x", "uri:x").put("y", "uri:y");
+
+        remap(false, "x", "y", "y", "x");
+
+        assertEquals(Arrays.asList("x", "y"), registry.calls);
+        assertEquals(map("x", "uri:y", "y", "uri:x"), registry.prefixes);
+        assertTrue(read("rejected.csv").isEmpty());
+    }
+
+    // Run the mappings, given as from, to pairs, and return the completed rows
+    private List<String[]> remap(final boolean dryRun, final String... pairs) throws Exception {
+        final String mappingPath = directory.resolve("mapping.csv").toString();
+        try (CSVWriter writer = new CSVWriter(new FileWriter(mappingPath))) {
+            writer.writeNext(new String[] {"from", "to"});
+            for (int i = 0; i < pairs.length; i += 2) {
+                writer.writeNext(new String[] {pairs[i], pairs[i + 1]});
+            }
+        }
+        new PrefixRemapper(registry, new RunMetrics.Timer("registerNamespace"), dryRun, 1).remap(mappingPath,
+                directory.resolve("completed.csv").toString(), directory.resolve("rejected.csv").toString());
+        return read("completed.csv");
+    }
+
+    private List<String[]> read(final String name) throws Exception {
+        final List<String[]> rows = new ArrayList<String[]>();
+        try (CSVReader reader = new CSVReader(new FileReader(directory.resolve(name).toString()))) {
+            reader.skip(1);
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private static List<String> column(final List<String[]> rows, final int index) {
+        final List<String> values = new ArrayList<String>();
+        for (final String[] row : rows) {
+            values.add(row[index]);
+        }
+        return values;
+    }
+
+    private static Map<String, String> map(final String... entries) {
+        final Map<String, String> map = new TreeMap<String, String>();
+        for (int i = 0; i < entries.length; i += 2) {
+            map.put(entries[i], entries[i + 1]);
+        }
+        return map;
+    }
+
+    /**
+     * Prefix to URI map with the JCR registerNamespace semantics, recording the prefix of every call
+     **/
+    private static class MapRegistry implements NamespaceRegistry {
+
+        private final Map<String, String> prefixes = new TreeMap<String, String>();
+
+        private final List<String> calls = new ArrayList<String>();
+
+        private MapRegistry put(final String prefix, final String uri) {
+            prefixes.put(prefix, uri);
+            return this;
+        }
+
+        @Override
+        public void registerNamespace(final String prefix, final String uri) throws NamespaceException {
+            if (prefixes.containsKey(prefix)) {
+                throw new NamespaceException("Prefix " + prefix + " is already registered");
+            }
+            calls.add(prefix);
+            prefixes.values().remove(uri);
+            prefixes.put(prefix, uri);
+        }
+
+        @Override
+        public void unregisterNamespace(final String prefix) throws NamespaceException {
+            if (prefixes.remove(prefix) == null) {
+                throw new NamespaceException("No such prefix " + prefix);
+            }
+        }
+
+        @Override
+        public String[] getPrefixes() {
+            return prefixes.keySet().toArray(new String[prefixes.size()]);
+        }
+
+        @Override
+        public String[] getURIs() {
+            return prefixes.values().toArray(new String[prefixes.size()]);
+        }
+
+        @Override
+        public String getURI(final String prefix) throws NamespaceException {
+            final String uri = prefixes.get(prefix);
+            if (uri == null) {
+                throw new NamespaceException("No such prefix " + prefix);
+            }
+            return uri;
+        }
+
+        @Override
+        public String getPrefix(final String uri) throws NamespaceException {
+            for (final Map.Entry<String, String> entry : prefixes.entrySet()) {
+                if (entry.getValue().equals(uri)) {
+                    return entry.getKey();
+                }
+            }
+            throw new NamespaceException("No such uri " + uri);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeTypeDefinition;
+import javax.jcr.nodetype.NodeTypeManager;
+import javax.jcr.nodetype.NodeTypeTemplate;
+
+import junit.framework.TestCase;
+
+import org.modeshape.jcr.ModeShapeEngine;
+import org.modeshape.jcr.RepositoryConfiguration;
+
+/**
+ * Takes snapshots of an in-memory repository and checks the id split between canonical and fallback
+ * prefixes, and how the URI nesting follows unlinked namespaces.
+ **/
+public class RegistrySnapshotTest extends TestCase {
+
+    private ModeShapeEngine engine;
+
+    private Session session;
+
+    @Override
+    protected void setUp() throws Exception {
+        engine = new ModeShapeEngine();
+        engine.start();
+        final RepositoryConfiguration config =
+                RepositoryConfiguration.read(getClass().getResource("/memory-repository.json"));
+        final Repository repository = engine.deploy(config);
+        engine.startRepository(config.getName()).get();
+        session = repository.login();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        session.logout();
+        engine.shutdown().get();
+    }
+
+    public void testGivesSparseAndNonCanonicalPrefixesFallbackIds() throws Exception {
+        register("ns3", "http://example.org/3", "ns3:None", "ns3:Other");
+        register("ns2000000", "http://example.org/2000000", "ns2000000:None");
+        register("ns07", "http://example.org/07", "ns07:None");
+        register("nsx", "http://example.org/x");
+        register("tmp", "info:fedora/tx:1/");
+
+        final RegistrySnapshot snapshot = take();
+
+        assertEquals(3, snapshot.idOf("ns3"));
+        assertEquals("ns3", snapshot.getPrefix(3));
+        assertEquals(Arrays.asList("ns3:None", "ns3:Other"), sorted(snapshot.getNodeTypes(3)));
+        for (final String prefix : Arrays.asList("ns2000000", "ns07", "nsx", "tmp")) {
+            final int id = snapshot.idOf(prefix);
+            assertTrue(prefix, id > 3 && id < 2000000);
+            assertEquals(prefix, snapshot.getPrefix(id));
+            assertTrue(prefix, snapshot.isNamespaceRegistered(prefix));
+        }
+        assertEquals("http://example.org/2000000", snapshot.getUri(snapshot.idOf("ns2000000")));
+        assertEquals(Arrays.asList("ns07:None"), snapshot.getNodeTypes(snapshot.idOf("ns07")));
+        assertFalse(snapshot.isNamespaceRegistered("ns7"));
+        assertEquals(5, snapshot.getNamespaceCount());
+        assertEquals(4, snapshot.getNodeTypeCount());
+
+        snapshot.nodeTypeUnregistered("ns2000000:None");
+        snapshot.nodeTypeUnregistered("ns3:Other");
+        snapshot.namespaceUnregistered("ns2000000");
+        assertFalse(snapshot.isNodeTypeRegistered("ns2000000:None"));
+        assertFalse(snapshot.isNodeTypeRegistered("ns3:Other"));
+        assertTrue(snapshot.isNodeTypeRegistered("ns3:None"));
+        assertEquals(Arrays.asList("ns07:None", "ns3:None"), sorted(snapshot.getAllNodeTypes()));
+        assertEquals(Arrays.asList("ns07", "ns3", "nsx", "tmp"), registeredPrefixes(snapshot));
+    }
+
+    public void testKeepsCanonicalPrefixesNumericWhenTheyAreDense() throws Exception {
+        register("ns1", "http://example.org/1", "ns1:None");
+        register("ns5", "http://example.org/5", "ns5:None");
+
+        final RegistrySnapshot snapshot = take();
+
+        assertEquals(1, snapshot.idOf("ns1"));
+        assertEquals(5, snapshot.idOf("ns5"));
+        assertEquals(-1, snapshot.idOf("ns6"));
+        assertEquals(-1, snapshot.idOf("nsx"));
+        assertEquals(Arrays.asList("ns1", "ns5"), registeredPrefixes(snapshot));
+    }
+
+    public void testUnlinkingLeavesFirstClearsEachParentInTurn() throws Exception {
+        registerNesting();
+        final RegistrySnapshot snapshot = take();
+
+        assertTrue(snapshot.hasChildNamespaces("ns1"));
+        assertTrue(snapshot.hasChildNamespaces("ns2"));
+        assertFalse(snapshot.hasChildNamespaces("ns3"));
+        assertFalse(snapshot.hasChildNamespaces("ns4"));
+
+        snapshot.unlink("ns3");
+        assertFalse(snapshot.hasChildNamespaces("ns2"));
+        snapshot.unlink("ns2");
+        assertTrue(snapshot.hasChildNamespaces("ns1"));
+        snapshot.unlink("ns4");
+        assertFalse(snapshot.hasChildNamespaces("ns1"));
+    }
+
+    public void testUnlinkingAParentFirstMovesItsChildrenUp() throws Exception {
+        registerNesting();
+        final RegistrySnapshot snapshot = take();
+
+        snapshot.unlink("ns2");
+        snapshot.unlink("ns4");
+        assertTrue(snapshot.hasChildNamespaces("ns1"));
+        assertFalse(snapshot.hasChildNamespaces("ns2"));
+
+        snapshot.unlink("ns3");
+        snapshot.unlink("ns3");
+        assertFalse(snapshot.hasChildNamespaces("ns1"));
+    }
+
+    // ns1 holds ns2 and ns4, ns2 holds ns3. ns4 shares ns2's characters but not its last segment.
+    private void registerNesting() throws Exception {
+        register("ns1", "info:fedora/tx:1/");
+        register("ns2", "info:fedora/tx:1/a/");
+        register("ns3", "info:fedora/tx:1/a/b");
+        register("ns4", "info:fedora/tx:1/ab");
+    }
+
+    private RegistrySnapshot take() throws Exception {
+        return RegistrySnapshot.take(session.getWorkspace().getNamespaceRegistry(),
+                session.getWorkspace().getNodeTypeManager(), name -> name.startsWith("ns"));
+    }
+
+    private void register(final String prefix, final String uri, final String... nodeTypes) throws Exception {
+        final NamespaceRegistry namespaceRegistry = session.getWorkspace().getNamespaceRegistry();
+        namespaceRegistry.registerNamespace(prefix, uri);
+        final NodeTypeManager nodeTypeManager = session.getWorkspace().getNodeTypeManager();
+        final List<NodeTypeDefinition> templates = new ArrayList<NodeTypeDefinition>();
+        for (final String nodeType : nodeTypes) {
+            final NodeTypeTemplate template = nodeTypeManager.createNodeTypeTemplate();
+            template.setName(nodeType);
+            template.setMixin(true);
+            templates.add(template);
+        }
+        if (!templates.isEmpty()) {
+            nodeTypeManager.registerNodeTypes(templates.toArray(new NodeTypeDefinition[templates.size()]), true);
+        }
+    }
+
+    private static List<String> registeredPrefixes(final RegistrySnapshot snapshot) {
+        final List<String> prefixes = new ArrayList<String>();
+        for (int id = snapshot.nextRegistered(0); id >= 0; id = snapshot.nextRegistered(id + 1)) {
+            prefixes.add(snapshot.getPrefix(id));
+        }
+        return sorted(prefixes);
+    }
+
+    private static List<String> sorted(final List<String> values) {
+        final List<String> copy = new ArrayList<String>(values);
+        Collections.sort(copy);
+        return copy;
+    }
+}
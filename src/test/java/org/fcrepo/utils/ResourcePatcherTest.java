@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the patcher against a stand-in fcrepo REST endpoint that records every PATCH and answers
+ * with scripted status codes, 204 once a resource's script is used up.
+ **/
+public class ResourcePatcherTest extends TestCase {
+
+    private static final String URI_A = "http://localhost:8080/fcrepo/rest/tx:a/";
+
+    private static final String URI_B = "http://localhost:8080/fcrepo/rest/tx:b/";
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    private Path directory;
+
+    private String input;
+
+    private final Map<String, Deque<Integer>> statuses = new HashMap<String, Deque<Integer>>();
+
+    // Path, body, method and Authorization header of every request, in arrival order
+    private final List<String[]> requests = Collections.synchronizedList(new ArrayList<String[]>());
+
+    @Override
+    protected void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/rest", this::respond);
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort() + "/rest";
+        directory = Files.createTempDirectory("patch-test");
+        input = directory.resolve("cleanup.csv").toString();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        for (final File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+
+    public void testMergesTheTypesOfOneResourceIntoOnePatch() throws Exception {
+        writeInput(new String[] {"ns1", URI_A, "ns1:None", "/r1"},
+                new String[] {"ns2", URI_B, "ns2:None", "/r1"},
+                new String[] {"ns1", URI_A, "ns1:None", "/r1"},
+                new String[] {"ns1", URI_A, "ns1:None", "/r2/jcr:content"},
+                new String[] {"ns2", URI_B, "ns2:None", ""});
+
+        try (ResourcePatcher patcher = newPatcher(0)) {
+            patcher.patch(input);
+        }
+
+        final Map<String, String> bodies = bodiesByPath();
+        assertEquals(2, requests.size());
+        assertEquals("PATCH", requests.get(0)[2]);
+        assertEquals("Bearer token", requests.get(0)[3]);
+        assertEquals("DELETE DATA { <> a <" + URI_A + "None> . <> a <" + URI_B + "None> }", bodies.get("/rest/r1"));
+        assertEquals("DELETE DATA { <> a <" + URI_A + "None> }", bodies.get("/rest/r2/fcr:metadata"));
+        assertEquals(Arrays.asList(baseUrl + "/r1", baseUrl + "/r2/fcr:metadata"), outcomes("completed"));
+    }
+
+    public void testRetriesAndBacksOffOn429And503() throws Exception {
+        writeInput(new String[] {"ns1", URI_A, "ns1:None", "/r1"});
+        statuses.put("/rest/r1", new ArrayDeque<Integer>(Arrays.asList(503, 429)));
+
+        final AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(100, 1, 200, 4);
+        try (ResourcePatcher patcher = new ResourcePatcher(baseUrl, "token", 2, 2, false, false, rateLimiter,
+                5000)) {
+            patcher.patch(input);
+        }
+
+        assertEquals(3, requests.size());
+        assertTrue("Rate not lowered: " + rateLimiter.getRate(), rateLimiter.getRate() < 100);
+        assertEquals(Arrays.asList(baseUrl + "/r1"), outcomes("completed"));
+        assertTrue(outcomes("failed").isEmpty());
+    }
+
+    public void testResumeSendsFailuresAgainAndSkipsDoneAndUncertain() throws Exception {
+        writeInput(new String[] {"ns1", URI_A, "ns1:None", "/done"},
+                new String[] {"ns1", URI_A, "ns1:None", "/failed"},
+                new String[] {"ns1", URI_A, "ns1:None", "/unanswered"});
+        statuses.put("/rest/failed", new ArrayDeque<Integer>(Arrays.asList(401)));
+        // A previous run that crashed after sending this request
+        try (FileOutputStream journal = new FileOutputStream(input + ".journal.patch")) {
+            journal.write(("S\t" + baseUrl + "/unanswered\n").getBytes(UTF_8));
+        }
+
+        try (ResourcePatcher patcher = newPatcher(2)) {
+            patcher.patch(input);
+        }
+        assertEquals(Arrays.asList("/rest/done", "/rest/failed"), sortedPaths());
+        assertEquals(Arrays.asList(baseUrl + "/failed"), outcomes("failed"));
+
+        requests.clear();
+        try (ResourcePatcher patcher = newPatcher(2)) {
+            patcher.patch(input);
+        }
+        assertEquals(Arrays.asList("/rest/failed"), sortedPaths());
+        assertEquals(Arrays.asList(baseUrl + "/unanswered"), outcomes("uncertain"));
+
+        // Now done, nothing is left to send
+        requests.clear();
+        try (ResourcePatcher patcher = newPatcher(2)) {
+            patcher.patch(input);
+        }
+        assertTrue(requests.isEmpty());
+    }
+
+    private ResourcePatcher newPatcher(final int retries) {
+        return new ResourcePatcher(baseUrl, "token", 2, retries, false, false,
+                new AdaptiveRateLimiter(1000, 1, 1000, 4), 5000);
+    }
+
+    private void writeInput(final String[]... rows) throws IOException {
+        try (CSVWriter writer = new CSVWriter(new FileWriter(input))) {
+            writer.writeNext(new String[] {"namespace", "namespaceUri", "nodeType", "resource"});
+            for (final String[] row : rows) {
+                writer.writeNext(row);
+            }
+        }
+    }
+
+    private Map<String, String> bodiesByPath() {
+        final Map<String, String> bodies = new HashMap<String, String>();
+        for (final String[] request : requests) {
+            bodies.put(request[0], request[1]);
+        }
+        return bodies;
+    }
+
+    private List<String> sortedPaths() {
+        final List<String> paths = new ArrayList<String>();
+        for (final String[] request : requests) {
+            paths.add(request[0]);
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    // Request URIs listed in the most recent <file>-<timestamp>-patch-<kind>.csv
+    private List<String> outcomes(final String kind) throws Exception {
+        File latest = null;
+        for (final File file : directory.toFile().listFiles()) {
+            if (file.getName().endsWith("-patch-" + kind + ".csv")
+                    && (latest == null || file.getName().compareTo(latest.getName()) > 0)) {
+                latest = file;
+            }
+        }
+        final List<String> uris = new ArrayList<String>();
+        if (latest == null) {
+            return uris;
+        }
+        try (CSVReader reader = new CSVReader(new FileReader(latest))) {
+            reader.skip(1);
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                uris.add(row[0]);
+            }
+        }
+        Collections.sort(uris);
+        return uris;
+    }
+
+    private void respond(final HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        requests.add(new String[] {path, read(exchange.getRequestBody()), exchange.getRequestMethod(),
+            exchange.getRequestHeaders().getFirst("Authorization")});
+
+        final Integer status;
+        synchronized (statuses) {
+            final Deque<Integer> script = statuses.get(path);
+            status = script == null || script.isEmpty() ? 204 : script.poll();
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    private static String read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) > 0) {
+            buffer.write(chunk, 0, read);
+        }
+        return new String(buffer.toByteArray(), UTF_8);
+    }
+}
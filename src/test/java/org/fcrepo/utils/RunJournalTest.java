@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.Repository;
+import javax.jcr.Session;
+
+import junit.framework.TestCase;
+
+import org.modeshape.jcr.ModeShapeEngine;
+import org.modeshape.jcr.RepositoryConfiguration;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+
+/**
+ * Drives the journal the way the commands do and simulates crashes by reopening it without
+ * completing or closing it. The last case runs add-resources itself on what a crash left behind.
+ **/
+public class RunJournalTest extends TestCase {
+
+    private static final String[] HEADER = {"namespace", "namespaceUri", "nodeType", "resource"};
+
+    private Path directory;
+
+    private String journalPath;
+
+    private String outputPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("run-journal-test");
+        journalPath = directory.resolve("input.csv.journal").toString();
+        outputPath = directory.resolve("output.csv").toString();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (final File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+
+    public void testCommitsPastADeferredRowAndHandsItBackAfterACrash() throws Exception {
+        final RunJournal journal = new RunJournal(journalPath, 1000, Long.MAX_VALUE);
+        final RunJournal.Output output = journal.output(outputPath, true, HEADER);
+        write(output, journal, 1);
+        journal.deferred(2);
+        for (long sequence = 3; sequence <= 5; sequence++) {
+            write(output, journal, sequence);
+        }
+        journal.commit();
+        // Crash before the retry at the end of the run
+
+        final RunJournal resumed = new RunJournal(journalPath, 1000, Long.MAX_VALUE);
+        assertEquals(5, resumed.getLastSequence());
+        assertEquals(Arrays.asList(2L), new ArrayList<Long>(resumed.getDeferred()));
+        final RunJournal.Output resumedOutput = resumed.output(outputPath, true, HEADER);
+        write(resumedOutput, resumed, 2);
+        resumed.complete();
+        resumed.close();
+
+        assertEquals(Arrays.asList("1", "3", "4", "5", "2"), readNamespaces());
+        final RunJournal done = new RunJournal(journalPath, 1000, Long.MAX_VALUE);
+        assertTrue(done.isComplete());
+        assertTrue(done.getDeferred().isEmpty());
+        done.close();
+    }
+
+    public void testDeferredRowIsOnlyResolvedWithTheOutputThatHoldsIt() throws Exception {
+        final RunJournal journal = new RunJournal(journalPath, 1000, Long.MAX_VALUE);
+        final RunJournal.Output output = journal.output(outputPath, true, HEADER);
+        write(output, journal, 1);
+        journal.deferred(2);
+        write(output, journal, 3);
+        journal.commit();
+        // Row 4 waits in a batch while row 5 is done and row 2 retried, so the outputs are not consistent yet
+        write(output, journal, 5);
+        write(output, journal, 2);
+        journal.commit();
+        // Crash before row 4 is written
+
+        final RunJournal resumed = new RunJournal(journalPath, 1000, Long.MAX_VALUE);
+        assertEquals(3, resumed.getLastSequence());
+        assertEquals(Arrays.asList(2L), new ArrayList<Long>(resumed.getDeferred()));
+        resumed.output(outputPath, true, HEADER);
+        resumed.close();
+        assertEquals(Arrays.asList("1", "3"), readNamespaces());
+    }
+
+    public void testCommitsOnlyTheContiguousRowsOfAnOutOfOrderCompletion() throws Exception {
+        final RunJournal journal = new RunJournal(journalPath, 1000, Long.MAX_VALUE);
+        final RunJournal.Output output = journal.output(outputPath, true, HEADER);
+        write(output, journal, 1);
+        write(output, journal, 3);
+        write(output, journal, 4);
+        journal.commit();
+        // Crash while row 2 is still on a worker
+
+        RunJournal resumed = new RunJournal(journalPath, 1000, Long.MAX_VALUE);
+        assertEquals(1, resumed.getLastSequence());
+        final RunJournal.Output resumedOutput = resumed.output(outputPath, true, HEADER);
+        assertEquals(Arrays.asList("1"), readNamespaces());
+
+        for (long sequence = 3; sequence <= 4; sequence++) {
+            write(resumedOutput, resumed, sequence);
+        }
+        write(resumedOutput, resumed, 2);
+        resumed.commit();
+        resumed.close();
+
+        resumed = new RunJournal(journalPath, 1000, Long.MAX_VALUE);
+        assertEquals(4, resumed.getLastSequence());
+        resumed.output(outputPath, true, HEADER);
+        resumed.close();
+        assertEquals(Arrays.asList("1", "3", "4", "2"), readNamespaces());
+    }
+
+    public void testRestartCutsPersistentOutputsBackToTheLastCommit() throws Exception {
+        final String skippedPath = directory.resolve("skipped.csv").toString();
+        final RunJournal journal = new RunJournal(journalPath, 2, Long.MAX_VALUE);
+        final RunJournal.Output output = journal.output(outputPath, true, HEADER);
+        final RunJournal.Output skipped = journal.output(skippedPath, false, HEADER);
+        write(output, journal, 1);
+        skipped.write(new String[] {"s", "", "", ""});
+        write(output, journal, 2);
+        write(output, journal, 3);
+        // Crash with row 3 written but not committed
+
+        final RunJournal resumed = new RunJournal(journalPath, 2, Long.MAX_VALUE);
+        assertEquals(2, resumed.getLastSequence());
+        resumed.output(outputPath, true, HEADER);
+        resumed.output(skippedPath, false, HEADER);
+        resumed.close();
+        assertEquals(Arrays.asList("1", "2"), readNamespaces());
+        assertEquals(1, Files.readAllLines(directory.resolve("skipped.csv")).size());
+    }
+
+    public void testIgnoresATornJournalLine() throws Exception {
+        final RunJournal journal = new RunJournal(journalPath, 1000, Long.MAX_VALUE);
+        final RunJournal.Output output = journal.output(outputPath, true, HEADER);
+        write(output, journal, 1);
+        journal.commit();
+        journal.close();
+        try (FileWriter torn = new FileWriter(journalPath, true)) {
+            torn.write("7\toutput.csv=");
+        }
+
+        final RunJournal resumed = new RunJournal(journalPath, 1000, Long.MAX_VALUE);
+        assertEquals(1, resumed.getLastSequence());
+        resumed.close();
+    }
+
+    public void testAddResourcesFinishesTheReplacementLeftByACrashedCompleteRun() throws Exception {
+        final String input = directory.resolve("input.csv").toString();
+        final String working = input + ".add-resource-working-file";
+        try (CSVWriter writer = new CSVWriter(new FileWriter(input))) {
+            writer.writeNext(HEADER);
+            writer.writeNext(new String[] {"ns1", "u1", "ns1:None", ""});
+        }
+        try (CSVWriter writer = new CSVWriter(new FileWriter(working))) {
+            writer.writeNext(HEADER);
+            writer.writeNext(new String[] {"ns1", "u1", "ns1:None", "/r1"});
+        }
+        final RunJournal journal = new RunJournal(input + ".journal.add-resources", 1000, Long.MAX_VALUE);
+        journal.complete();
+        journal.close();
+
+        runAddResources(input);
+        assertEquals("/r1", readRows(input).get(1)[3]);
+        assertFalse(new File(working).exists());
+        assertFalse(new File(input + ".journal.add-resources").exists());
+
+        // A crash after the replacement leaves only the complete journal, the input is kept as it is
+        final RunJournal again = new RunJournal(input + ".journal.add-resources", 1000, Long.MAX_VALUE);
+        again.complete();
+        again.close();
+        runAddResources(input);
+        assertEquals("/r1", readRows(input).get(1)[3]);
+        assertFalse(new File(working).exists());
+        assertFalse(new File(input + ".journal.add-resources").exists());
+    }
+
+    // Run add-resources on an empty in-memory repository, the command ends before any query
+    private static void runAddResources(final String input) throws Exception {
+        final ModeShapeEngine engine = new ModeShapeEngine();
+        engine.start();
+        System.setProperty("command", "add-resources");
+        System.setProperty("filepath", input);
+        try {
+            final RepositoryConfiguration config =
+                    RepositoryConfiguration.read(RunJournalTest.class.getResource("/memory-repository.json"));
+            final Repository repository = engine.deploy(config);
+            engine.startRepository(config.getName()).get();
+            final Session session = repository.login();
+            try {
+                new NamespaceUtil().run(session, () -> session);
+            } finally {
+                session.logout();
+            }
+        } finally {
+            System.clearProperty("command");
+            System.clearProperty("filepath");
+            engine.shutdown().get();
+        }
+    }
+
+    // Write the row's output and mark it processed, as a command's sink does
+    private static void write(final RunJournal.Output output, final RunJournal journal, final long sequence)
+            throws Exception {
+        output.write(new String[] {String.valueOf(sequence), "", "", ""});
+        journal.processed(sequence);
+    }
+
+    private List<String> readNamespaces() throws Exception {
+        final List<String[]> rows = readRows(outputPath);
+        final List<String> namespaces = new ArrayList<String>();
+        for (final String[] row : rows.subList(1, rows.size())) {
+            namespaces.add(row[0]);
+        }
+        return namespaces;
+    }
+
+    private static List<String[]> readRows(final String path) throws Exception {
+        final List<String[]> rows = new ArrayList<String[]>();
+        try (CSVReader reader = new CSVReader(new FileReader(path))) {
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+
+/**
+ * Splits, claims, reclaims and merges shards in a temporary directory. Two ShardDirectory
+ * instances on the same directory stand in for two processes.
+ **/
+public class ShardDirectoryTest extends TestCase {
+
+    private static final String[] HEADER = {"namespace", "namespaceUri", "nodeType", "resource"};
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("shard-test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (final File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+
+    public void testSplitKeepsPrefixesTogetherInNumericOrder() throws Exception {
+        final String input = directory.resolve("input.csv").toString();
+        try (CSVWriter writer = new CSVWriter(new FileWriter(input))) {
+            writer.writeNext(HEADER);
+            writer.writeNext(new String[] {"ns10", "u10", "ns10:None", "/a"});
+            writer.writeNext(new String[] {"other", "uo", "other:None", ""});
+            writer.writeNext(new String[] {"ns2", "u2", "ns2:None", ""});
+            writer.writeNext(new String[] {"ns10", "u10", "ns10:None", "/b"});
+            writer.writeNext(new String[] {"ns1", "u1", "ns1:None", ""});
+        }
+
+        final ShardDirectory shards = new ShardDirectory(directory.toString(), 300);
+        shards.split(input, 2);
+
+        assertEquals(2, shards.countShards(ShardDirectory.RESOURCES));
+        assertEquals(Arrays.asList("ns1", "ns2"), prefixes(shards.getShardPath(ShardDirectory.RESOURCES, 0)));
+        assertEquals(Arrays.asList("ns10", "ns10", "other"),
+                prefixes(shards.getShardPath(ShardDirectory.RESOURCES, 1)));
+    }
+
+    public void testClaimsEachShardOnceAndMergesWhenAllAreDone() throws Exception {
+        final ShardDirectory first = new ShardDirectory(directory.toString(), 300);
+        final ShardDirectory second = new ShardDirectory(directory.toString(), 300);
+        writeShard(first, 0, "ns0");
+        writeShard(first, 1, "ns1");
+        final String merged = directory.resolve("merged.csv").toString();
+
+        try (ShardDirectory.Claim claim0 = first.claim(ShardDirectory.LIST, 2);
+                ShardDirectory.Claim claim1 = second.claim(ShardDirectory.LIST, 2)) {
+            assertEquals(0, claim0.getShard());
+            assertEquals(1, claim1.getShard());
+            assertNull(first.claim(ShardDirectory.LIST, 2));
+            claim0.complete();
+            assertFalse(first.merge(ShardDirectory.LIST, merged, 2));
+            claim1.complete();
+        }
+
+        assertNull(second.claim(ShardDirectory.LIST, 2));
+        assertTrue(first.merge(ShardDirectory.LIST, merged, 2));
+        assertEquals(Arrays.asList("ns0", "ns1"), prefixes(merged));
+    }
+
+    public void testReclaimsAStaleLockAndTheOldOwnerLetsGo() throws Exception {
+        final ShardDirectory live = new ShardDirectory(directory.toString(), 300);
+        final ShardDirectory impatient = new ShardDirectory(directory.toString(), 0);
+
+        final ShardDirectory.Claim dead = live.claim(ShardDirectory.LIST, 1);
+        assertNull(live.claim(ShardDirectory.LIST, 1));
+        final ShardDirectory.Claim reclaimed = impatient.claim(ShardDirectory.LIST, 1);
+        assertNotNull(reclaimed);
+
+        assertFalse(dead.isHeld());
+        assertTrue(reclaimed.isHeld());
+        try {
+            dead.complete();
+            fail("A lost claim must not mark the shard done");
+        } catch (IOException expected) {
+            // the shard belongs to the new owner
+        }
+        dead.close();
+        assertTrue(reclaimed.isHeld());
+        reclaimed.close();
+    }
+
+    public void testPutsBackALockClaimedAfreshSinceItWasJudgedStale() throws Exception {
+        final ShardDirectory live = new ShardDirectory(directory.toString(), 300);
+        final ShardDirectory impatient = new ShardDirectory(directory.toString(), 0);
+        final Path lock = directory.resolve("list-0000.lock");
+
+        Files.write(lock, "dead".getBytes(UTF_8));
+        final String judged = impatient.staleToken(lock);
+        assertEquals("dead", judged);
+
+        // Another process reclaims the stale lock and claims the shard before this one moves it
+        Files.delete(lock);
+        final ShardDirectory.Claim fresh = live.claim(ShardDirectory.LIST, 1);
+        assertFalse(impatient.takeStale(lock, judged));
+
+        assertTrue(fresh.isHeld());
+        assertEquals(1, directory.toFile().listFiles((dir, name) -> name.startsWith("list-0000.lock")).length);
+        fresh.close();
+        assertFalse(Files.exists(lock));
+    }
+
+    private void writeShard(final ShardDirectory shards, final int shard, final String prefix) throws Exception {
+        try (CSVWriter writer = new CSVWriter(new FileWriter(shards.getShardPath(ShardDirectory.LIST, shard)))) {
+            writer.writeNext(HEADER);
+            writer.writeNext(new String[] {prefix, "u", prefix + ":None", ""});
+        }
+    }
+
+    private static List<String> prefixes(final String csvPath) throws Exception {
+        final List<String> prefixes = new ArrayList<String>();
+        try (CSVReader reader = new CSVReader(new FileReader(csvPath))) {
+            reader.skip(1);
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                prefixes.add(row[0]);
+            }
+        }
+        return prefixes;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the Solr lookup against a stub /select handler that implements just enough of Solr: a
+ * terms filter on rdf_type, sorting by id and cursorMark paging.
+ **/
+public class SolrResourceLookupTest extends TestCase {
+
+    private static final String URI_A = "http://localhost:8080/fcrepo/rest/tx:a/";
+
+    private static final String URI_B = "http://localhost:8080/fcrepo/rest/tx:b/";
+
+    private static final String URI_C = "http://localhost:8080/fcrepo/rest/tx:c/";
+
+    private HttpServer server;
+
+    private String solrUrl;
+
+    private Path directory;
+
+    // Indexed documents, an rdf_type is either a list or a single string
+    private final List<Map<String, Object>> index = new ArrayList<Map<String, Object>>();
+
+    private final List<Map<String, String>> requests = Collections.synchronizedList(
+            new ArrayList<Map<String, String>>());
+
+    @Override
+    protected void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/solr/fedora4/select", this::select);
+        server.start();
+        solrUrl = "http://localhost:" + server.getAddress().getPort() + "/solr/fedora4/";
+        directory = Files.createTempDirectory("solr-lookup-test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        for (final File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+
+    public void testFollowsCursorMarkUntilEveryHitIsRead() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            addDocument("r" + i, Arrays.asList("fedora:Container", URI_A + "None"));
+        }
+        addDocument("other", Arrays.asList("fedora:Container"));
+
+        try (SolrResourceLookup lookup = new SolrResourceLookup(solrUrl, 10, 2, 1, 5000)) {
+            final Map<String, List<String>> resources = lookup.findResources(Arrays.asList(URI_A + "None"));
+            assertEquals(Arrays.asList("r0", "r1", "r2", "r3", "r4"), resources.get(URI_A + "None"));
+        }
+        // Three full or partial pages, then the page handing the same cursor back
+        assertEquals(4, requests.size());
+        assertEquals("*", requests.get(0).get("cursorMark"));
+        assertEquals("2", requests.get(0).get("rows"));
+    }
+
+    public void testSendsOneTermsFilterPerBatchAndKeepsInputOrder() throws Exception {
+        addDocument("a1", Arrays.asList(URI_A + "None"));
+        addDocument("b1", Arrays.asList(URI_B + "None", "fedora:Binary"));
+        addDocument("b2", Arrays.asList(URI_B + "None"));
+        addDocument("c1", Arrays.asList(URI_C + "None"));
+
+        final String input = directory.resolve("list.csv").toString();
+        try (CSVWriter writer = new CSVWriter(new FileWriter(input))) {
+            writer.writeNext(new String[] {"namespace", "namespaceUri", "nodeType", "resource"});
+            writer.writeNext(new String[] {"ns1", URI_A, "ns1:None", ""});
+            writer.writeNext(new String[] {"ns2", URI_B, "ns2:None", ""});
+            writer.writeNext(new String[] {"ns3", URI_C, "ns3:None", "kept"});
+            writer.writeNext(new String[] {"ns4", "http://localhost:8080/fcrepo/rest/tx:d/", "ns4:None", ""});
+            writer.writeNext(new String[] {"ns5", URI_C, "ns5:None", ""});
+        }
+
+        try (SolrResourceLookup lookup = new SolrResourceLookup(solrUrl, 2, 100, 2, 5000)) {
+            lookup.addResources(input);
+        }
+
+        final List<String> filters = new ArrayList<String>();
+        for (final Map<String, String> request : requests) {
+            if (!filters.contains(request.get("fq"))) {
+                filters.add(request.get("fq"));
+            }
+        }
+        assertEquals(3, filters.size());
+        assertTrue(filters.contains("{!terms f=rdf_type separator=\",\"}" + URI_A + "None," + URI_B + "None"));
+        assertTrue(filters.contains("{!terms f=rdf_type separator=\",\"}" + URI_C + "None"));
+
+        final List<String> rows = new ArrayList<String>();
+        try (CSVReader reader = new CSVReader(new FileReader(directory.resolve("list-with-resources.csv")
+                .toString()))) {
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                rows.add(row[0] + " " + row[3]);
+            }
+        }
+        assertEquals(Arrays.asList("namespace resource", "ns1 a1", "ns2 b1/fcr:metadata", "ns2 b2", "ns3 kept",
+                "ns5 c1", "ns4 "), rows);
+    }
+
+    public void testReadsSingleValuedRdfType() throws Exception {
+        addDocument("single", URI_A + "None");
+        addDocument("binary", "fedora:Binary");
+
+        try (SolrResourceLookup lookup = new SolrResourceLookup(solrUrl, 10, 10, 1, 5000)) {
+            final Map<String, List<String>> resources = lookup.findResources(
+                    Arrays.asList(URI_A + "None", "fedora:Binary"));
+            assertEquals(Arrays.asList("single"), resources.get(URI_A + "None"));
+            assertEquals(Arrays.asList("binary/fcr:metadata"), resources.get("fedora:Binary"));
+        }
+    }
+
+    private void addDocument(final String id, final Object rdfType) {
+        final Map<String, Object> doc = new HashMap<String, Object>();
+        doc.put("id", id);
+        doc.put("rdf_type", rdfType);
+        index.add(doc);
+    }
+
+    private void select(final HttpExchange exchange) throws IOException {
+        final Map<String, String> params = readForm(exchange.getRequestBody());
+        requests.add(params);
+
+        final String filter = params.get("fq");
+        final String separator = filter.substring(filter.indexOf("separator=\"") + 11, filter.indexOf("\"}"));
+        final List<String> terms = Arrays.asList(filter.substring(filter.indexOf('}') + 1).split(
+                Pattern.quote(separator)));
+
+        final List<Map<String, Object>> hits = new ArrayList<Map<String, Object>>();
+        for (final Map<String, Object> doc : index) {
+            final Object rdfType = doc.get("rdf_type");
+            final List<?> values = rdfType instanceof List ? (List<?>) rdfType : Arrays.asList(rdfType);
+            if (!Collections.disjoint(values, terms)) {
+                hits.add(doc);
+            }
+        }
+        hits.sort((a, b) -> ((String) a.get("id")).compareTo((String) b.get("id")));
+
+        // The stub's cursor is the offset of the next hit, a page past the end hands the same mark back
+        final String cursorMark = params.get("cursorMark");
+        final int offset = "*".equals(cursorMark) ? 0 : Integer.parseInt(cursorMark.substring(1));
+        final int end = Math.min(hits.size(), offset + Integer.parseInt(params.get("rows")));
+        final StringBuilder docs = new StringBuilder();
+        for (int i = offset; i < end; i++) {
+            docs.append(docs.length() == 0 ? "" : ",").append(toJson(hits.get(i)));
+        }
+        final String nextCursorMark = end > offset ? "c" + end : cursorMark;
+        final String body = "{\"responseHeader\":{\"status\":0},\"response\":{\"numFound\":" + hits.size()
+                + ",\"start\":0,\"docs\":[" + docs + "]},\"nextCursorMark\":\"" + nextCursorMark + "\"}";
+
+        final byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String toJson(final Map<String, Object> doc) {
+        final Object rdfType = doc.get("rdf_type");
+        final String value;
+        if (rdfType instanceof List) {
+            final List<String> quoted = new ArrayList<String>();
+            for (final Object type : (List<?>) rdfType) {
+                quoted.add("\"" + type + "\"");
+            }
+            value = "[" + String.join(",", quoted) + "]";
+        } else {
+            value = "\"" + rdfType + "\"";
+        }
+        return "{\"id\":\"" + doc.get("id") + "\",\"rdf_type\":" + value + "}";
+    }
+
+    private static Map<String, String> readForm(final InputStream in) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) > 0) {
+            buffer.write(chunk, 0, read);
+        }
+        final Map<String, String> params = new HashMap<String, String>();
+        for (final String pair : new String(buffer.toByteArray(), UTF_8).split("&")) {
+            final int equals = pair.indexOf('=');
+            params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                    URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+
+import junit.framework.TestCase;
+
+import org.modeshape.jcr.ModeShapeEngine;
+import org.modeshape.jcr.RepositoryConfiguration;
+
+/**
+ * Generates into an in-memory repository and checks the bucket layout and the numbering of
+ * repeated runs.
+ **/
+public class SpuriousNamespaceGeneratorTest extends TestCase {
+
+    private ModeShapeEngine engine;
+
+    private Session session;
+
+    @Override
+    protected void setUp() throws Exception {
+        engine = new ModeShapeEngine();
+        engine.start();
+        final RepositoryConfiguration config =
+                RepositoryConfiguration.read(getClass().getResource("/memory-repository.json"));
+        final Repository repository = engine.deploy(config);
+        engine.startRepository(config.getName()).get();
+        session = repository.login();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        session.logout();
+        engine.shutdown().get();
+    }
+
+    public void testNestsResourcesInBuckets() throws Exception {
+        new SpuriousNamespaceGenerator(session, "ns", 500).generate(2, 1001, 0.5, "/generated");
+
+        assertEquals(2, session.getNode("/generated/b0").getNodes().getSize());
+        assertEquals(1000, session.getNode("/generated/b0/b0").getNodes().getSize());
+        assertTrue(session.nodeExists("/generated/b0/b0/r999"));
+        assertTrue(session.nodeExists("/generated/b0/b1/r1000"));
+        assertTrue(session.getNode("/generated/b0/b0/r0").isNodeType("ns0:None"));
+        assertFalse(session.getNode("/generated/b0/b0/r600").isNodeType("ns0:None"));
+    }
+
+    public void testRepeatedRunsContinueTheNumbering() throws Exception {
+        final List<String> first = new SpuriousNamespaceGenerator(session, "ns", 10).generate(2, 3, 1, "/generated");
+        final List<String> second = new SpuriousNamespaceGenerator(session, "ns", 10).generate(1, 2, 1, "/generated");
+
+        assertEquals(Arrays.asList("ns0", "ns1"), first);
+        assertEquals(Arrays.asList("ns2"), second);
+        final Node bucket = session.getNode("/generated/b0/b0");
+        assertEquals(5, bucket.getNodes().getSize());
+        assertFalse(session.nodeExists("/generated/b0/b0/r0[2]"));
+        assertTrue(session.getNode("/generated/b0/b0/r3").isNodeType("ns2:None"));
+        assertTrue(session.getNode("/generated/b0/b0/r4").isNodeType("ns2:None"));
+    }
+}